@@ -1,30 +1,47 @@
 package de.kai_morich.simple_bluetooth_terminal
 
 import android.bluetooth.*
-import android.bluetooth.le.ScanCallback
-import android.bluetooth.le.ScanResult
 import android.content.Context
+import android.os.Build
+import android.os.SystemClock
 import android.util.Log
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.util.*
 
-class BleOtaManager(private val context: Context, private val deviceFoundCallback: (BluetoothDevice) -> Unit) {
+class BleOtaManager(
+    private val context: Context,
+    scanConfig: ScanScheduler.Config = ScanScheduler.Config(),
+    private val deviceFoundCallback: (BluetoothDevice) -> Unit
+) {
 
     private var bluetoothGatt: BluetoothGatt? = null
     private var characteristic: BluetoothGattCharacteristic? = null
+    private var writeQueue: GattWriteQueue? = null
+    private val frameEncoder = OtaFrameEncoder()
     private var step = 0
     private val TAG = "BleOtaManager"
     private var isOtaInProgress = false
     private var bluetoothAdapter: BluetoothAdapter? = null
-    private var scanResults: MutableList<BluetoothDevice> = mutableListOf()
-    private var scanning = false
+    // 每次发送的最大字节数, MTU - 3, 在 onMtuChanged 中更新
+    var maxWriteSize = DEFAULT_WRITE_SIZE
+        private set
+    // 吞吐量, 应答延迟, NACK 和队列深度统计
+    val metrics = OtaMetrics()
+    @Volatile private var lastSentNanos = 0L
+    private val replyDecoder = OtaFrameDecoder(object : OtaFrameDecoder.Listener {
+        override fun onHandshake() = onReply()
+        override fun onAck() = onReply()
+        override fun onNack() = metrics.onNack()
+        override fun onData(buffer: ByteArray, off: Int, len: Int) {}
+        override fun onStatus(type: Int, buffer: ByteArray, off: Int, len: Int) {}
+    }, OtaFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH, true) // 固件应答的 CRC 为 0
 
     companion object {
         // 使用自定义 UUID
         val UUID_SERVICE = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb")
         val UUID_WRITE = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb")
-        const val MAX_MTU = 20 // 设置每次发送的最大字节数
+        const val DEFAULT_WRITE_SIZE = MtuNegotiator.DEFAULT_MTU - 3
     }
 
 
@@ -33,40 +50,22 @@ class BleOtaManager(private val context: Context, private val deviceFoundCallbac
         bluetoothAdapter = bluetoothManager.adapter
     }
 
+    // 只接收关心的设备广播, 过滤尽量交给蓝牙芯片
+    private val scanScheduler = ScanScheduler(bluetoothAdapter, scanConfig) { result ->
+        result.device?.let { device ->
+            deviceFoundCallback(device) // 当找到设备时调用回调，将设备传递给外部处理
+        }
+    }
+
 
     fun startScan() {
-        if (scanning) return
-        scanning = true
-        bluetoothAdapter?.bluetoothLeScanner?.startScan(scanCallback)
-        Log.d(TAG, "Started BLE scan")
+        scanScheduler.start()
     }
 
     fun stopScan() {
-        if (!scanning) return
-        scanning = false
-        bluetoothAdapter?.bluetoothLeScanner?.stopScan(scanCallback)
-        Log.d(TAG, "Stopped BLE scan")
+        scanScheduler.stop()
     }
 
-    private val scanCallback = object : ScanCallback() {
-        override fun onScanResult(callbackType: Int, result: ScanResult?) {
-            result?.device?.let { device ->
-                deviceFoundCallback(device) // 当找到设备时调用回调，将设备传递给外部处理
-            }
-        }
-
-        override fun onBatchScanResults(results: List<ScanResult?>) {
-            results.forEach { result ->
-                result?.device?.let { device ->
-                    deviceFoundCallback(device) // 处理批量扫描结果
-                }
-            }
-        }
-
-        override fun onScanFailed(errorCode: Int) {
-            Log.e(TAG, "Scan failed with error code: $errorCode")
-        }
-    }
     fun connect(device: BluetoothDevice) {
         bluetoothGatt = device.connectGatt(context, false, gattCallback)
     }
@@ -78,6 +77,8 @@ class BleOtaManager(private val context: Context, private val deviceFoundCallbac
                 gatt?.discoverServices()
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 Log.d(TAG, "Disconnected from GATT server")
+                writeQueue?.close()
+                writeQueue = null
             }
         }
 
@@ -85,12 +86,25 @@ class BleOtaManager(private val context: Context, private val deviceFoundCallbac
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.d(TAG, "Services discovered")
                 characteristic = gatt?.getService(UUID_SERVICE)?.getCharacteristic(UUID_WRITE)
+                writeQueue?.close()
+                writeQueue = characteristic?.let { GattWriteQueue(gatt!!, it) }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+                    gatt?.requestMtu(MtuNegotiator.MAX_MTU) // 单次请求, 协议栈返回双方支持的最小值
             } else {
                 Log.e(TAG, "Service discovery failed with status: $status")
             }
         }
 
+        override fun onMtuChanged(gatt: BluetoothGatt?, mtu: Int, status: Int) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "MTU changed to $mtu")
+                maxWriteSize = mtu - 3
+                metrics.reset("MTU $mtu, window ${GattWriteQueue.DEFAULT_WINDOW}")
+            }
+        }
+
         override fun onCharacteristicWrite(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?, status: Int) {
+            writeQueue?.onCharacteristicWrite(status)
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 Log.d(TAG, "Characteristic write successful")
             } else {
@@ -101,19 +115,38 @@ class BleOtaManager(private val context: Context, private val deviceFoundCallbac
         override fun onCharacteristicChanged(gatt: BluetoothGatt?, characteristic: BluetoothGattCharacteristic?) {
             val receivedData = characteristic?.value
             Log.d(TAG, "Received data: ${receivedData?.contentToString()}")
+            receivedData?.let { replyDecoder.feed(it) }
         }
     }
 
-    // 分段发送
+    // 分段发送, 由 GattWriteQueue 等待 onCharacteristicWrite 后逐个写入
     private fun sendDataInChunks(data: ByteArray) {
-        val totalPackets = (data.size + MAX_MTU - 1) / MAX_MTU
-        for (i in 0 until totalPackets) {
-            val start = i * MAX_MTU
-            val end = minOf(start + MAX_MTU, data.size)
-            val chunk = data.copyOfRange(start, end)
-            characteristic?.value = chunk
-            bluetoothGatt?.writeCharacteristic(characteristic)
+        val queue = writeQueue
+        if (queue == null) {
+            Log.e(TAG, "Not connected, ${data.size} bytes not sent")
+            return
         }
+        metrics.onFrameSent(data.size, false)
+        lastSentNanos = SystemClock.elapsedRealtimeNanos()
+        val writeSize = maxWriteSize
+        var start = 0
+        while (start < data.size) {
+            val end = minOf(start + writeSize, data.size)
+            if (!queue.enqueue(data.copyOfRange(start, end))) {
+                Log.e(TAG, "Write queue full, ${data.size - start} bytes not sent")
+                break
+            }
+            start = end
+        }
+        metrics.onQueueDepth(queue.getQueueDepth())
+    }
+
+    // 吞吐量和丢包统计
+    fun getWriteStats(): GattWriteQueue.Stats? = writeQueue?.getStats()
+
+    // 应答延迟从最后一次发送算起, 这里的指令是逐条应答的
+    private fun onReply() {
+        metrics.onAck(SystemClock.elapsedRealtimeNanos() - lastSentNanos, 0)
     }
 
     // 模拟步骤 0 的指令发送
@@ -124,42 +157,27 @@ class BleOtaManager(private val context: Context, private val deviceFoundCallbac
 
     // 模拟步骤 1 的指令发送
     fun sendOtaStart() {
-        val otaStartCommand = byteArrayOf(
-            0xAA.toByte(), 0x00.toByte(), 0x01.toByte(), 0x00.toByte(),
-            0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0xBB.toByte()
-        )
-        sendDataInChunks(otaStartCommand)
+        sendDataInChunks(frameEncoder.encode(OtaFrameEncoder.TYPE_COMMAND, byteArrayOf(0x00)))
     }
 
-    // 模拟步骤 2 的指令发送
+    // 模拟步骤 2 的指令发送: 固件大小, 保留, 固件CRC, 版本
     fun sendOtaHeader() {
-        val otaHeaderCommand = byteArrayOf(
-            0xAA.toByte(), 0x02.toByte(), 0x10.toByte(), 0x00.toByte(),
+        val header = byteArrayOf(
             0x7C.toByte(), 0x42.toByte(), 0x00.toByte(), 0x00.toByte(),
             0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0x00.toByte(),
             0xF0.toByte(), 0xCA.toByte(), 0xFF.toByte(), 0xFF.toByte(),
-            0x07.toByte(), 0x00.toByte(), 0x00.toByte(), 0x00.toByte(),
-            0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0xBB.toByte()
+            0x07.toByte(), 0x00.toByte(), 0x00.toByte(), 0x00.toByte()
         )
-        sendDataInChunks(otaHeaderCommand)
+        sendDataInChunks(frameEncoder.encode(OtaFrameEncoder.TYPE_HEADER, header))
     }
 
     // 模拟步骤 3 的指令发送
     fun sendOtaData() {
-        val otaDataCommand = byteArrayOf(
-            0xAA.toByte(), 0x01.toByte(), 0x05.toByte(), 0x00.toByte(),
-            0x68.toByte(), 0x65.toByte(), 0x6C.toByte(), 0x6C.toByte(), 0x6F.toByte(),
-            0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0xBB.toByte()
-        )
-        sendDataInChunks(otaDataCommand)
+        sendDataInChunks(frameEncoder.encode(OtaFrameEncoder.TYPE_DATA, "hello".toByteArray()))
     }
 
     // 模拟步骤 4 的指令发送
     fun sendOtaEnd() {
-        val otaEndCommand = byteArrayOf(
-            0xAA.toByte(), 0x01.toByte(), 0x01.toByte(), 0x00.toByte(),
-            0x01.toByte(), 0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0x00.toByte(), 0xBB.toByte()
-        )
-        sendDataInChunks(otaEndCommand)
+        sendDataInChunks(frameEncoder.encode(OtaFrameEncoder.TYPE_COMMAND, byteArrayOf(0x01)))
     }
 }
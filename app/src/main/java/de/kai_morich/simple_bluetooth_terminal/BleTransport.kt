@@ -0,0 +1,281 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.bluetooth.BluetoothDevice
+import android.bluetooth.BluetoothGatt
+import android.bluetooth.BluetoothManager
+import android.content.Context
+import android.os.Build
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import com.clj.fastble.BleManager
+import com.clj.fastble.callback.BleGattCallback
+import com.clj.fastble.callback.BleNotifyCallback
+import com.clj.fastble.callback.BleWriteCallback
+import com.clj.fastble.data.BleDevice
+import com.clj.fastble.exception.BleException
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+/**
+ * BLE GATT link over FastBle, so BLE sessions run in SerialService like SPP sessions.
+ *
+ * connect() blocks the socket thread until connected, notification enabled and MTU
+ * negotiated. Notifications are offered to a pipe read by SerialSocket, so they get
+ * SerialService's detached queueing and merged UI delivery. The main thread never waits
+ * for the pipe, as the socket thread can wait for the main thread when delivering to the
+ * UI. If the pipe is full, notifications are dropped and counted. Writes from the SerialWriter
+ * thread are split to MTU - 3 and each chunk waits for its write callback, so a slow link
+ * throttles the writer thread instead of piling up in FastBle.
+ *
+ * FastBle calls back on the main thread, all FastBle calls are posted there as well.
+ */
+internal class BleTransport(
+    private val context: Context,
+    private val address: String,
+    private val profiles: LinkProfileStore,
+    private val mtuNegotiator: MtuNegotiator,
+    private val connectTimeoutMillis: Long = DEFAULT_CONNECT_TIMEOUT_MILLIS
+) : SerialTransport {
+
+    companion object {
+        const val DEFAULT_CONNECT_TIMEOUT_MILLIS = 30_000L
+        private const val TAG = "BleTransport"
+        private const val WRITE_TIMEOUT_MILLIS = 5_000L
+        private const val PIPE_SIZE = 256 * 1024
+    }
+
+    /**
+     * called on the main thread with every notification before it is queued for
+     * SerialSocket, for protocol replies that must not wait for the UI, e.g. OTA
+     */
+    @Volatile
+    var notifyListener: ((ByteArray) -> Unit)? = null
+
+    @Volatile
+    var bleDevice: BleDevice? = null
+        private set
+    @Volatile
+    var mtu = MtuNegotiator.DEFAULT_MTU
+        private set
+    @Volatile
+    var serviceUuid: String? = null
+        private set
+    @Volatile
+    var characteristicUuid: String? = null
+        private set
+
+    /**
+     * notification bytes dropped because SerialSocket did not keep up
+     */
+    @Volatile
+    var droppedBytes = 0L
+        private set
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val pipe = PipeTransport(PIPE_SIZE)
+    private val peerOutput = pipe.peerOutputStream
+    private val connected = CountDownLatch(1)
+    @Volatile
+    private var connectError: IOException? = null
+    @Volatile
+    private var pendingWrite: CountDownLatch? = null
+    @Volatile
+    private var closed = false
+
+    override fun getName(): String = bleDevice?.name ?: address
+
+    override fun connect() {
+        handler.post { startConnect() }
+        try {
+            if (!connected.await(connectTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw IOException("connect timeout")
+        } catch (e: InterruptedException) {
+            throw IOException("connect interrupted")
+        }
+        connectError?.let { throw it }
+        if (closed)
+            throw IOException("closed")
+    }
+
+    override fun getInputStream(): InputStream = pipe.inputStream
+
+    override fun getOutputStream(): OutputStream = object : OutputStream() {
+        override fun write(b: Int) = write(byteArrayOf(b.toByte()), 0, 1)
+
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            var pos = off
+            while (pos < off + len) {
+                val n = minOf(mtu - 3, off + len - pos)
+                writeChunk(b.copyOfRange(pos, pos + n))
+                pos += n
+            }
+        }
+    }
+
+    override fun close() {
+        closed = true
+        pipe.close()
+        connected.countDown()
+        pendingWrite?.countDown()
+        handler.post {
+            bleDevice?.let { BleManager.getInstance().disconnect(it) }
+        }
+    }
+
+    private fun startConnect() {
+        if (closed) return
+        BleManager.getInstance().connect(address, object : BleGattCallback() {
+            override fun onStartConnect() {}
+
+            override fun onConnectFail(bleDevice: BleDevice?, exception: BleException?) {
+                fail(IOException("connect failed: ${exception?.description}"))
+            }
+
+            override fun onConnectSuccess(bleDevice: BleDevice?, gatt: BluetoothGatt?, status: Int) {
+                if (bleDevice == null || gatt == null) {
+                    fail(IOException("connect failed"))
+                    return
+                }
+                this@BleTransport.bleDevice = bleDevice
+                if (closed) {
+                    BleManager.getInstance().disconnect(bleDevice)
+                    return
+                }
+                if (!applyLinkProfile(bleDevice, gatt)) {
+                    fail(IOException("no characteristic with notify and write"))
+                    BleManager.getInstance().disconnect(bleDevice)
+                    return
+                }
+                enableNotification(bleDevice)
+            }
+
+            override fun onDisConnected(isActiveDisConnected: Boolean, device: BleDevice?, gatt: BluetoothGatt?, status: Int) {
+                fail(IOException("disconnected"))
+                // end of stream for SerialSocket
+                try {
+                    peerOutput.close()
+                } catch (ignored: IOException) {
+                }
+            }
+        })
+    }
+
+    /**
+     * characteristic, connection priority and PHY from the last connect, to shorten negotiation
+     * @return false if no usable characteristic was found
+     */
+    private fun applyLinkProfile(bleDevice: BleDevice, gatt: BluetoothGatt): Boolean {
+        val mac = bleDevice.mac
+        val profile = profiles.get(mac)
+        val resolved = LinkProfileStore.resolveCharacteristic(
+            gatt,
+            profile?.serviceUuid ?: OtaUpdateManager.uuid_service,
+            profile?.characteristicUuid ?: OtaUpdateManager.uuid_notify
+        ) ?: return false
+        serviceUuid = resolved.first
+        characteristicUuid = resolved.second
+        var priority = profile?.connectionPriority ?: -1
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (priority < 0)
+                priority = BluetoothGatt.CONNECTION_PRIORITY_HIGH
+            BleManager.getInstance().requestConnectionPriority(bleDevice, priority)
+        }
+        var txPhy = profile?.txPhy ?: 0
+        var rxPhy = profile?.rxPhy ?: 0
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            val adapter = context.getSystemService(BluetoothManager::class.java)?.adapter
+            if (txPhy == 0 && adapter?.isLe2MPhySupported == true) {
+                txPhy = BluetoothDevice.PHY_LE_2M_MASK
+                rxPhy = BluetoothDevice.PHY_LE_2M_MASK
+            }
+            if (txPhy != 0)
+                gatt.setPreferredPhy(txPhy, rxPhy, BluetoothDevice.PHY_OPTION_NO_PREFERRED)
+        }
+        profiles.update(mac) {
+            it.copy(
+                txPhy = txPhy,
+                rxPhy = rxPhy,
+                serviceUuid = resolved.first,
+                characteristicUuid = resolved.second,
+                connectionPriority = priority
+            )
+        }
+        return true
+    }
+
+    // FastBle does not queue GATT operations, so MTU follows in the notify callback
+    private fun enableNotification(bleDevice: BleDevice) {
+        BleManager.getInstance().notify(bleDevice, serviceUuid, characteristicUuid, object : BleNotifyCallback() {
+            override fun onNotifySuccess() {
+                negotiateMtu(bleDevice)
+            }
+
+            override fun onNotifyFailure(exception: BleException?) {
+                fail(IOException("notify failed: ${exception?.description}"))
+                BleManager.getInstance().disconnect(bleDevice)
+            }
+
+            override fun onCharacteristicChanged(data: ByteArray) {
+                notifyListener?.invoke(data)
+                if (!pipe.offerPeerData(data) && !closed) {
+                    if (droppedBytes == 0L)
+                        Log.w(TAG, "receive pipe full, dropping notifications")
+                    droppedBytes += data.size
+                }
+            }
+        })
+    }
+
+    private fun negotiateMtu(bleDevice: BleDevice) {
+        mtuNegotiator.negotiate(bleDevice) { mtu ->
+            this.mtu = mtu
+            connected.countDown()
+        }
+    }
+
+    private fun fail(e: IOException) {
+        if (connected.count > 0 && connectError == null)
+            connectError = e
+        connected.countDown()
+    }
+
+    /**
+     * called from the writer thread, waits for the write callback
+     */
+    private fun writeChunk(chunk: ByteArray) {
+        val device = bleDevice
+        if (closed || device == null)
+            throw IOException("not connected")
+        val done = CountDownLatch(1)
+        var error: String? = null
+        pendingWrite = done
+        handler.post {
+            BleManager.getInstance().write(device, serviceUuid, characteristicUuid, chunk, false, object : BleWriteCallback() {
+                override fun onWriteSuccess(current: Int, total: Int, justWrite: ByteArray?) {
+                    done.countDown()
+                }
+
+                override fun onWriteFailure(exception: BleException?) {
+                    error = "write failed: ${exception?.description}"
+                    done.countDown()
+                }
+            })
+        }
+        try {
+            if (!done.await(WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                throw IOException("write timeout")
+        } catch (e: InterruptedException) {
+            throw IOException("write interrupted")
+        } finally {
+            pendingWrite = null
+        }
+        if (closed)
+            throw IOException("closed")
+        error?.let { throw IOException(it) }
+    }
+
+}
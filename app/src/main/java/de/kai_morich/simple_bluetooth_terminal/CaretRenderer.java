@@ -0,0 +1,111 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.BackgroundColorSpan;
+
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * incremental https://en.wikipedia.org/wiki/Caret_notation renderer.
+ *
+ * Each chunk is scanned once and appended to the target, so appending costs O(chunk).
+ * Adjacent control characters share one span, also across chunk boundaries.
+ * Spans removed by clear() are reused.
+ */
+final class CaretRenderer {
+
+    private static final int MAX_RECYCLED_SPANS = 256;
+
+    private final boolean keepNewline;
+    private final int color;
+    private final ArrayDeque<BackgroundColorSpan> recycled = new ArrayDeque<>();
+    private char[] chars = new char[256];
+    private int[] runs = new int[16]; // start,end pairs of control character runs in chars
+    // last span, extended if the next chunk starts with a control character
+    private BackgroundColorSpan lastSpan;
+    private SpannableStringBuilder lastTarget;
+    private int lastSpanStart, lastLength;
+
+    CaretRenderer(boolean keepNewline) {
+        this(keepNewline, TextUtil.caretBackground);
+    }
+
+    CaretRenderer(boolean keepNewline, int color) {
+        this.keepNewline = keepNewline;
+        this.color = color;
+    }
+
+    static boolean isControl(char c, boolean keepNewline) {
+        return c < 32 && (!keepNewline || c != '\n');
+    }
+
+    /**
+     * append s[start,end) to target.
+     * text is converted into a reusable buffer and appended at once, as each
+     * append to a SpannableStringBuilder costs time proportional to its span count
+     */
+    void append(SpannableStringBuilder target, CharSequence s, int start, int end) {
+        if (chars.length < 2 * (end - start))
+            chars = new char[Math.max(2 * (end - start), 2 * chars.length)];
+        int len = 0, runCount = 0;
+        for (int pos = start; pos < end; pos++) {
+            char c = s.charAt(pos);
+            if (!isControl(c, keepNewline)) {
+                chars[len++] = c;
+                continue;
+            }
+            if (runCount == 0 || runs[2 * runCount - 1] != len) {
+                if (runs.length < 2 * (runCount + 1))
+                    runs = Arrays.copyOf(runs, 2 * runs.length);
+                runs[2 * runCount] = len;
+                runCount++;
+            }
+            chars[len++] = '^';
+            chars[len++] = (char) (c + 64);
+            runs[2 * runCount - 1] = len;
+        }
+        int offset = target.length();
+        boolean extend = lastSpan != null && target == lastTarget && offset == lastLength;
+        target.append(CharBuffer.wrap(chars, 0, len));
+        for (int i = 0; i < runCount; i++) {
+            int runStart = offset + runs[2 * i], runEnd = offset + runs[2 * i + 1];
+            if (i == 0 && extend && runStart == offset) {
+                target.setSpan(lastSpan, lastSpanStart, runEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                continue;
+            }
+            BackgroundColorSpan span = recycled.poll();
+            if (span == null)
+                span = new BackgroundColorSpan(color);
+            target.setSpan(span, runStart, runEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            lastSpan = span;
+            lastSpanStart = runStart;
+        }
+        if (runCount == 0 || runs[2 * runCount - 1] != len)
+            lastSpan = null; // text ends with normal character, nothing to extend
+        lastTarget = target;
+        lastLength = target.length();
+    }
+
+    void append(SpannableStringBuilder target, CharSequence s) {
+        append(target, s, 0, s.length());
+    }
+
+    /**
+     * remove all text, keep spans for reuse
+     */
+    void clear(SpannableStringBuilder target) {
+        BackgroundColorSpan[] spans = target.getSpans(0, target.length(), BackgroundColorSpan.class);
+        for (BackgroundColorSpan span : spans) {
+            target.removeSpan(span);
+            if (recycled.size() < MAX_RECYCLED_SPANS && span.getBackgroundColor() == color)
+                recycled.add(span);
+        }
+        target.clear();
+        lastSpan = null;
+        lastTarget = null;
+    }
+
+}
@@ -1,14 +1,14 @@
-package de.kai_morich.simple_bluetooth_terminal;
-
-class Constants {
-
-    // values have to be globally unique
-    static final String INTENT_ACTION_DISCONNECT = BuildConfig.APPLICATION_ID + ".Disconnect";
-    static final String NOTIFICATION_CHANNEL = BuildConfig.APPLICATION_ID + ".Channel";
-    static final String INTENT_CLASS_MAIN_ACTIVITY = BuildConfig.APPLICATION_ID + ".MainActivity";
-
-    // values have to be unique within each app
-    static final int NOTIFY_MANAGER_START_FOREGROUND_SERVICE = 1001;
-
-    private Constants() {}
-}
+package de.kai_morich.simple_bluetooth_terminal;
+
+class Constants {
+
+    // values have to be globally unique
+    static final String INTENT_ACTION_DISCONNECT = BuildConfig.APPLICATION_ID + ".Disconnect";
+    static final String NOTIFICATION_CHANNEL = BuildConfig.APPLICATION_ID + ".Channel";
+    static final String INTENT_CLASS_MAIN_ACTIVITY = BuildConfig.APPLICATION_ID + ".MainActivity";
+
+    // values have to be unique within each app
+    static final int NOTIFY_MANAGER_START_FOREGROUND_SERVICE = 1001;
+
+    private Constants() {}
+}
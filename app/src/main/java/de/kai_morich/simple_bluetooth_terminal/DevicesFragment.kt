@@ -1,76 +1,183 @@
-package de.kai_morich.simple_bluetooth_terminal
-
-import android.os.Bundle
-import android.util.Log
-import android.view.LayoutInflater
-import android.view.View
-import android.view.ViewGroup
-import android.widget.ArrayAdapter
-import android.widget.Button
-import android.widget.ListView
-import android.widget.Toast
-import androidx.fragment.app.Fragment
-import com.clj.fastble.BleManager
-import com.clj.fastble.callback.BleScanCallback
-import com.clj.fastble.data.BleDevice
-import kotlin.math.log
-
-class DevicesFragment : Fragment() {
-
-    private lateinit var listView: ListView
-    private lateinit var refreshButton: Button
-    private lateinit var listAdapter: ArrayAdapter<String>
-    private val devicesList = ArrayList<BleDevice>()
-
-    override fun onCreateView(
-        inflater: LayoutInflater, container: ViewGroup?,
-        savedInstanceState: Bundle?
-    ): View? {
-        val view = inflater.inflate(R.layout.fragment_devices, container, false)
-
-        listView = view.findViewById(R.id.listView)
-        refreshButton = view.findViewById(R.id.refresh_button)
-
-        listAdapter = ArrayAdapter(requireContext(), android.R.layout.simple_list_item_1, ArrayList<String>())
-        listView.adapter = listAdapter
-
-
-
-
-        refreshButton.setOnClickListener {
-            startScan()
-        }
-
-        listView.setOnItemClickListener { _, _, position, _ ->
-            val selectedDevice = devicesList[position]
-            val address = selectedDevice.mac
-            Log.i(OtaUpdateManager.TAG,"bleDevice.mac = ${address}")
-
-            (activity as MainActivity).navigateToTerminalFragment(address)
-        }
-
-        // Initial scan
-        startScan()
-
-        return view
-    }
-
-    private fun startScan() {
-        listAdapter.clear()
-        devicesList.clear()
-        BleManager.getInstance().scan(object : BleScanCallback() {
-            override fun onScanStarted(success: Boolean) {
-                Toast.makeText(requireContext(), "Scan started", Toast.LENGTH_SHORT).show()
-            }
-
-            override fun onScanning(bleDevice: BleDevice) {
-                devicesList.add(bleDevice)
-                listAdapter.add("${bleDevice.name ?: "Unknown"} (${bleDevice.mac})")
-            }
-
-            override fun onScanFinished(scanResultList: List<BleDevice>) {
-                Toast.makeText(requireContext(), "Scan finished", Toast.LENGTH_SHORT).show()
-            }
-        })
-    }
-}
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.bluetooth.BluetoothManager
+import android.net.Uri
+import android.os.Bundle
+import android.util.Log
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.Button
+import android.widget.ListView
+import android.widget.TextView
+import android.widget.Toast
+import androidx.activity.result.contract.ActivityResultContracts
+import androidx.fragment.app.Fragment
+import com.clj.fastble.data.BleDevice
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import kotlin.concurrent.thread
+import kotlin.math.log
+
+class DevicesFragment : Fragment() {
+
+    private lateinit var listView: ListView
+    private lateinit var refreshButton: Button
+    private lateinit var updateAllButton: Button
+    private lateinit var otaSummary: TextView
+    private lateinit var listAdapter: ScanResultAdapter
+    private var orchestrator: OtaOrchestrator? = null
+    private var loading = false
+    private var scanner: ScanScheduler? = null
+    private val scanTimeout = Runnable {
+        stopScan()
+        Toast.makeText(requireContext(), "Scan finished", Toast.LENGTH_SHORT).show()
+    }
+
+    companion object {
+        private const val SCAN_TIMEOUT_MILLIS = 10_000L
+        private const val SCAN_REPORT_DELAY_MILLIS = 500L
+    }
+
+    private val firmwarePicker = registerForActivityResult(ActivityResultContracts.OpenDocument()) { uri ->
+        uri?.let { updateAll(it) }
+    }
+
+    override fun onCreateView(
+        inflater: LayoutInflater, container: ViewGroup?,
+        savedInstanceState: Bundle?
+    ): View? {
+        val view = inflater.inflate(R.layout.fragment_devices, container, false)
+
+        listView = view.findViewById(R.id.listView)
+        refreshButton = view.findViewById(R.id.refresh_button)
+        updateAllButton = view.findViewById(R.id.update_all_button)
+        otaSummary = view.findViewById(R.id.ota_summary)
+
+        listAdapter = ScanResultAdapter(requireContext(), listView)
+        listView.adapter = listAdapter
+
+
+
+
+        refreshButton.setOnClickListener {
+            startScan()
+        }
+
+        updateAllButton.setOnClickListener {
+            if (orchestrator != null)
+                orchestrator?.cancel()
+            else if (loading)
+                return@setOnClickListener
+            else if (listAdapter.getMacs(BleOtaManager.UUID_SERVICE).isEmpty())
+                Toast.makeText(requireContext(), "No devices with OTA service found", Toast.LENGTH_SHORT).show()
+            else
+                firmwarePicker.launch(arrayOf("*/*"))
+        }
+
+        listView.setOnItemClickListener { _, _, position, _ ->
+            val address = listAdapter.getMac(position)
+            Log.i(OtaUpdateManager.TAG,"bleDevice.mac = ${address}")
+
+            (activity as MainActivity).navigateToTerminalFragment(address)
+        }
+
+        // Initial scan
+        startScan()
+
+        return view
+    }
+
+    override fun onDestroy() {
+        stopScan()
+        orchestrator?.cancel()
+        super.onDestroy()
+    }
+
+    // 不按服务过滤, 显示所有设备. 结果由蓝牙芯片批量上报, 减少唤醒和界面刷新
+    private fun startScan() {
+        if (orchestrator != null) return
+        stopScan()
+        listAdapter.clear()
+        val adapter = requireContext().getSystemService(BluetoothManager::class.java)?.adapter
+        val config = ScanScheduler.Config(serviceUuids = emptyList(), reportDelayMillis = SCAN_REPORT_DELAY_MILLIS)
+        // every advertisement, for RSSI updates
+        val scanner = ScanScheduler(adapter, config) { result ->
+            result.device?.let {
+                listAdapter.update(BleDevice(it, result.rssi, result.scanRecord?.bytes, result.timestampNanos))
+            }
+        }
+        this.scanner = scanner
+        scanner.start()
+        if (!scanner.isRunning) {
+            Toast.makeText(requireContext(), "Scan failed", Toast.LENGTH_SHORT).show()
+            return
+        }
+        Toast.makeText(requireContext(), "Scan started", Toast.LENGTH_SHORT).show()
+        listView.postDelayed(scanTimeout, SCAN_TIMEOUT_MILLIS)
+    }
+
+    private fun stopScan() {
+        val scanner = scanner ?: return
+        listView.removeCallbacks(scanTimeout)
+        scanner.stop()
+        this.scanner = null
+    }
+
+    // 批量升级扫描到的所有设备. 固件在后台线程读取并计算校验, 所有设备共用
+    private fun updateAll(firmware: Uri) {
+        val resolver = requireContext().contentResolver
+        loading = true
+        updateAllButton.text = "Loading..."
+        thread(name = "firmware loader") {
+            val result = try {
+                val image = resolver.openInputStream(firmware)?.use { it.readBytes() }
+                    ?: throw IOException("cannot open $firmware")
+                Result.success(Pair(image, OtaEngine.Image.of(ByteArrayInputStream(image))))
+            } catch (e: IOException) {
+                Result.failure(e)
+            }
+            listView.post {
+                loading = false
+                updateAllButton.text = "Update all"
+                if (!isAdded) return@post
+                result.fold({ (image, info) -> startUpdate(image, info) }, {
+                    Toast.makeText(requireContext(), "Firmware read failed: ${it.message}", Toast.LENGTH_SHORT).show()
+                })
+            }
+        }
+    }
+
+    private fun startUpdate(image: ByteArray, info: OtaEngine.Image) {
+        stopScan()
+        // 只升级广播了 OTA 服务的设备, 不去连接附近的手机, 耳机等其它设备
+        val macs = listAdapter.getMacs(BleOtaManager.UUID_SERVICE)
+        val batch = OtaOrchestrator(requireContext(), object : OtaOrchestrator.Listener {
+            override fun onDeviceChanged(status: OtaOrchestrator.DeviceStatus) {
+                val progress = if (status.total > 0) " ${100 * status.acknowledged / status.total}%" else ""
+                val error = if (status.error != null && status.state != OtaOrchestrator.State.DONE) " (${status.error})" else ""
+                listAdapter.setStatus(status.mac, "${status.state}$progress$error")
+            }
+
+            override fun onProgress(summary: OtaOrchestrator.Summary) {
+                showSummary(summary, false)
+            }
+
+            override fun onFinished(summary: OtaOrchestrator.Summary) {
+                showSummary(summary, true)
+                orchestrator = null
+                updateAllButton.text = "Update all"
+            }
+        })
+        orchestrator = batch
+        updateAllButton.text = "Cancel"
+        otaSummary.visibility = View.VISIBLE
+        batch.start(macs, image, info)
+    }
+
+    private fun showSummary(summary: OtaOrchestrator.Summary, finished: Boolean) {
+        otaSummary.text = (if (finished) "Finished: " else "Updating: ") +
+                "${summary.done} done, ${summary.failed} failed, ${summary.active} active, ${summary.queued} queued, " +
+                "${summary.bytesPerSecond / 1024} KB/s"
+    }
+}
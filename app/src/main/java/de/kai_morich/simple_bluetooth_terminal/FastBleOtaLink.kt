@@ -0,0 +1,94 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.bluetooth.BluetoothGatt
+import android.bluetooth.BluetoothGattCharacteristic
+import android.os.Handler
+import android.os.Looper
+import com.clj.fastble.BleManager
+import com.clj.fastble.callback.BleWriteCallback
+import com.clj.fastble.data.BleDevice
+import com.clj.fastble.exception.BleException
+import java.util.UUID
+
+/**
+ * OtaEngine link over FastBle. Writes go through a GattWriteQueue and are issued one
+ * after the other, as FastBle keeps only one write callback per characteristic. FastBle
+ * owns the BluetoothGattCallback, so its write callback reports the result to the queue.
+ * If the characteristic supports write-without-response, only every window-th write
+ * waits for a response from the device.
+ *
+ * Frames are split to maxWriteSize here, so the global FastBle split size, which is
+ * shared by all connected devices, does not matter.
+ */
+class FastBleOtaLink(
+    private val bleDevice: BleDevice,
+    override val maxWriteSize: Int,
+    private val renderer: RenderBatcher?,
+    private val serviceUuid: String? = OtaUpdateManager.uuid_service,
+    private val characteristicUuid: String? = OtaUpdateManager.uuid_notify,
+    private val onSent: ((ByteArray) -> Unit)? = null, // e.g. for SessionCapture
+    private val onError: (String) -> Unit
+) : OtaEngine.Link {
+
+    private val handler = Handler(Looper.getMainLooper())
+
+    private val writeCallback = object : BleWriteCallback() {
+        override fun onWriteSuccess(current: Int, total: Int, justWrite: ByteArray?) {
+            writeQueue?.onCharacteristicWrite(BluetoothGatt.GATT_SUCCESS)
+        }
+
+        override fun onWriteFailure(exception: BleException?) {
+            // FastBle also fails synchronously inside write(), the queue must not retry re-entrant
+            handler.post { writeQueue?.onCharacteristicWrite(BluetoothGatt.GATT_FAILURE) }
+        }
+    }
+
+    private val writeQueue: GattWriteQueue? = findCharacteristic()?.let {
+        GattWriteQueue(it, ::issue, onWritten = ::onWritten)
+    }
+
+    override val queueDepth: Int
+        get() = writeQueue?.getQueueDepth() ?: 0
+
+    override fun write(data: ByteArray) {
+        val queue = writeQueue
+        if (queue == null) {
+            onError("characteristic $characteristicUuid not found")
+            return
+        }
+        var start = 0
+        while (start < data.size) {
+            val end = minOf(start + maxWriteSize, data.size)
+            if (!queue.enqueue(data.copyOfRange(start, end))) {
+                onError("write queue full")
+                return
+            }
+            start = end
+        }
+    }
+
+    /**
+     * write statistics, null if the characteristic was not found
+     */
+    fun getWriteStats(): GattWriteQueue.Stats? = writeQueue?.getStats()
+
+    private fun findCharacteristic(): BluetoothGattCharacteristic? {
+        val service = serviceUuid ?: return null
+        val characteristic = characteristicUuid ?: return null
+        return BleManager.getInstance().getBluetoothGatt(bleDevice)
+            ?.getService(UUID.fromString(service))
+            ?.getCharacteristic(UUID.fromString(characteristic))
+    }
+
+    // the queue has set the write type on the characteristic, which FastBle writes with
+    private fun issue(chunk: ByteArray): Boolean {
+        BleManager.getInstance().write(bleDevice, serviceUuid, characteristicUuid, chunk, false, writeCallback)
+        return true
+    }
+
+    private fun onWritten(chunk: ByteArray) {
+        renderer?.sent(chunk)
+        onSent?.invoke(chunk)
+    }
+
+}
@@ -0,0 +1,72 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * like ReadMerger, but for frames: each frame stays one slice, so frame boundaries
+ * survive the merging into few consumer thread calls.
+ *
+ * The monitor is only held to add or swap the pending deque, never while the consumer
+ * runs. The producer waits if more than capacity bytes are pending, i.e. the consumer
+ * can't keep up.
+ */
+final class FrameMerger {
+
+    private static final long FULL_WAIT_NANOS = 1_000_000;
+
+    private final int capacity;
+    private final Executor consumerExecutor;
+    private final ReadMerger.Consumer consumer;
+    private ArrayDeque<ReceiveBufferPool.Slice> pending = new ArrayDeque<>();
+    private ArrayDeque<ReceiveBufferPool.Slice> datas = new ArrayDeque<>(); // consumer thread only
+    private int pendingBytes;
+    private boolean posted;
+    private final Runnable drain = this::drain;
+
+    /**
+     * @param consumerExecutor runs drain on consumer thread, e.g. Handler::post
+     */
+    FrameMerger(int capacity, Executor consumerExecutor, ReadMerger.Consumer consumer) {
+        this.capacity = capacity;
+        this.consumerExecutor = consumerExecutor;
+        this.consumer = consumer;
+    }
+
+    /**
+     * producer thread. consumer owns the frame afterwards
+     */
+    void write(ReceiveBufferPool.Slice frame) {
+        while (true) {
+            synchronized (this) {
+                // a frame larger than capacity is accepted if nothing else is pending
+                if (pendingBytes == 0 || pendingBytes + frame.length <= capacity) {
+                    pending.add(frame);
+                    pendingBytes += frame.length;
+                    if (!posted) {
+                        posted = true;
+                        consumerExecutor.execute(drain);
+                    }
+                    return;
+                }
+            }
+            LockSupport.parkNanos(FULL_WAIT_NANOS);
+        }
+    }
+
+    private void drain() {
+        synchronized (this) {
+            posted = false; // frames written after this point get a new post
+            ArrayDeque<ReceiveBufferPool.Slice> swap = datas;
+            datas = pending;
+            pending = swap;
+            pendingBytes = 0;
+        }
+        if (datas.isEmpty())
+            return;
+        consumer.onMergedRead(datas);
+        datas.clear();
+    }
+
+}
@@ -0,0 +1,343 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Arrays;
+
+/**
+ * split a byte stream into frames, fed with arbitrarily fragmented chunks.
+ *
+ * Frames are assembled in a reusable buffer, which only grows up to maxFrameLength.
+ * The sink gets the buffer, it must copy the frame if it keeps it after returning.
+ * Frames exceeding maxFrameLength or violating the encoding are dropped and counted.
+ * Not thread safe, feed from one thread at a time.
+ */
+abstract class Framer {
+
+    interface Sink {
+        void onFrame(byte[] frame, int off, int len);
+    }
+
+    // framing modes, in the order of R.array.framing_names
+    static final int NONE = 0;
+    static final int LINE_CRLF = 1;
+    static final int LINE_LF = 2;
+    static final int SLIP = 3;
+    static final int COBS = 4;
+    static final int LENGTH_PREFIX_8 = 5;
+    static final int LENGTH_PREFIX_16_BE = 6;
+
+    static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+    private static final int INITIAL_FRAME_CAPACITY = 256;
+
+    private final Sink sink;
+    private final int maxFrameLength;
+    private byte[] frame = new byte[INITIAL_FRAME_CAPACITY];
+    private int length;
+    private boolean overflow;
+    private long droppedFrames;
+
+    Framer(Sink sink, int maxFrameLength) {
+        this.sink = sink;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * @return null for NONE
+     */
+    static Framer create(int mode, Sink sink) {
+        switch (mode) {
+            case NONE:                return null;
+            case LINE_CRLF:           return new Line(new byte[]{'\r', '\n'}, sink);
+            case LINE_LF:             return new Line(new byte[]{'\n'}, sink);
+            case SLIP:                return new Slip(sink);
+            case COBS:                return new Cobs(sink);
+            case LENGTH_PREFIX_8:     return new LengthPrefix(1, true, sink);
+            case LENGTH_PREFIX_16_BE: return new LengthPrefix(2, true, sink);
+            default: throw new IllegalArgumentException("unknown framing " + mode);
+        }
+    }
+
+    abstract void feed(byte[] data, int off, int len);
+
+    /**
+     * discard partial frame, e.g. on a new connection
+     */
+    void reset() {
+        length = 0;
+        overflow = false;
+    }
+
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    final void put(byte b) {
+        if (length == frame.length) {
+            if (length >= maxFrameLength) {
+                overflow = true;
+                return;
+            }
+            frame = Arrays.copyOf(frame, Math.min(2 * length, maxFrameLength));
+        }
+        frame[length++] = b;
+    }
+
+    final int frameLength() {
+        return length;
+    }
+
+    /**
+     * @param trim bytes at the end of the frame buffer not belonging to the frame, e.g. the delimiter
+     */
+    final void emit(int trim) {
+        if (overflow)
+            droppedFrames++;
+        else
+            sink.onFrame(frame, 0, length - trim);
+        length = 0;
+        overflow = false;
+    }
+
+    final void drop() {
+        droppedFrames++;
+        length = 0;
+        overflow = false;
+    }
+
+    /**
+     * frames terminated by a delimiter, e.g. TextUtil.newline_crlf. The delimiter is not
+     * part of the frame. Multi byte delimiters are matched with a KMP automaton, so a
+     * delimiter split across chunks or preceded by a partial delimiter is found.
+     */
+    static final class Line extends Framer {
+        private final byte[] delimiter;
+        private final int[] fallback;
+        private int matched;
+
+        Line(byte[] delimiter, Sink sink) {
+            this(delimiter, sink, DEFAULT_MAX_FRAME_LENGTH);
+        }
+
+        Line(byte[] delimiter, Sink sink, int maxFrameLength) {
+            super(sink, maxFrameLength);
+            if (delimiter.length == 0)
+                throw new IllegalArgumentException("empty delimiter");
+            this.delimiter = delimiter.clone();
+            fallback = new int[delimiter.length + 1];
+            for (int i = 1, k = 0; i < delimiter.length; i++) {
+                while (k > 0 && delimiter[i] != delimiter[k])
+                    k = fallback[k];
+                if (delimiter[i] == delimiter[k])
+                    k++;
+                fallback[i + 1] = k;
+            }
+        }
+
+        @Override
+        void feed(byte[] data, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                byte b = data[i];
+                put(b);
+                while (matched > 0 && b != delimiter[matched])
+                    matched = fallback[matched];
+                if (b == delimiter[matched])
+                    matched++;
+                if (matched == delimiter.length) {
+                    matched = 0;
+                    emit(delimiter.length);
+                }
+            }
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            matched = 0;
+        }
+    }
+
+    /**
+     * SLIP, RFC 1055. Empty frames from back to back END bytes are skipped
+     */
+    static final class Slip extends Framer {
+        static final byte END = (byte) 0xc0;
+        static final byte ESC = (byte) 0xdb;
+        static final byte ESC_END = (byte) 0xdc;
+        static final byte ESC_ESC = (byte) 0xdd;
+
+        private boolean escaped;
+        private boolean invalid;
+
+        Slip(Sink sink) {
+            this(sink, DEFAULT_MAX_FRAME_LENGTH);
+        }
+
+        Slip(Sink sink, int maxFrameLength) {
+            super(sink, maxFrameLength);
+        }
+
+        @Override
+        void feed(byte[] data, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                byte b = data[i];
+                if (b == END) {
+                    if (invalid || escaped)
+                        drop();
+                    else if (frameLength() > 0)
+                        emit(0);
+                    escaped = false;
+                    invalid = false;
+                } else if (escaped) {
+                    escaped = false;
+                    if (b == ESC_END)
+                        put(END);
+                    else if (b == ESC_ESC)
+                        put(ESC);
+                    else
+                        invalid = true;
+                } else if (b == ESC) {
+                    escaped = true;
+                } else {
+                    put(b);
+                }
+            }
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            escaped = false;
+            invalid = false;
+        }
+    }
+
+    /**
+     * COBS encoded frames terminated by a zero byte. Empty frames are skipped
+     */
+    static final class Cobs extends Framer {
+        private int code;      // code byte of the current block, 0 before the first block
+        private int remaining; // data bytes left in the current block
+        private boolean pendingZero;
+
+        Cobs(Sink sink) {
+            this(sink, DEFAULT_MAX_FRAME_LENGTH);
+        }
+
+        Cobs(Sink sink, int maxFrameLength) {
+            super(sink, maxFrameLength);
+        }
+
+        @Override
+        void feed(byte[] data, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                int b = data[i] & 0xff;
+                if (b == 0) {
+                    if (remaining > 0)
+                        drop(); // truncated block
+                    else if (code != 0)
+                        emit(0);
+                    code = 0;
+                    remaining = 0;
+                    pendingZero = false;
+                } else if (remaining == 0) {
+                    if (pendingZero)
+                        put((byte) 0); // a block shorter than 254 bytes ends with an implicit zero, unless it is the last one
+                    code = b;
+                    remaining = b - 1;
+                    pendingZero = remaining == 0 && code < 0xff;
+                } else {
+                    put((byte) b);
+                    pendingZero = --remaining == 0 && code < 0xff;
+                }
+            }
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            code = 0;
+            remaining = 0;
+            pendingZero = false;
+        }
+    }
+
+    /**
+     * frames with an unsigned 1, 2 or 4 byte length prefix, which is not part of the frame
+     */
+    static final class LengthPrefix extends Framer {
+        private final int prefixLength;
+        private final boolean bigEndian;
+        private final int maxFrameLength;
+        private int prefixRead;
+        private long frameRemaining;
+        private long skipRemaining; // payload of a frame exceeding maxFrameLength
+
+        LengthPrefix(int prefixLength, boolean bigEndian, Sink sink) {
+            this(prefixLength, bigEndian, sink, DEFAULT_MAX_FRAME_LENGTH);
+        }
+
+        LengthPrefix(int prefixLength, boolean bigEndian, Sink sink, int maxFrameLength) {
+            super(sink, maxFrameLength);
+            if (prefixLength != 1 && prefixLength != 2 && prefixLength != 4)
+                throw new IllegalArgumentException("prefix length must be 1, 2 or 4");
+            this.prefixLength = prefixLength;
+            this.bigEndian = bigEndian;
+            this.maxFrameLength = maxFrameLength;
+        }
+
+        @Override
+        void feed(byte[] data, int off, int len) {
+            int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (skipRemaining > 0) {
+                    int n = (int) Math.min(skipRemaining, end - i);
+                    skipRemaining -= n;
+                    i += n;
+                } else if (prefixRead < prefixLength) {
+                    int b = data[i++] & 0xff;
+                    frameRemaining = bigEndian
+                            ? frameRemaining << 8 | b
+                            : frameRemaining | (long) b << (8 * prefixRead);
+                    if (++prefixRead == prefixLength)
+                        startFrame();
+                } else {
+                    int n = (int) Math.min(frameRemaining, end - i);
+                    for (int j = 0; j < n; j++)
+                        put(data[i + j]);
+                    i += n;
+                    frameRemaining -= n;
+                    if (frameRemaining == 0)
+                        endFrame();
+                }
+            }
+        }
+
+        private void startFrame() {
+            if (frameRemaining > maxFrameLength) {
+                skipRemaining = frameRemaining;
+                drop();
+                nextPrefix();
+            } else if (frameRemaining == 0) {
+                endFrame();
+            }
+        }
+
+        private void endFrame() {
+            emit(0);
+            nextPrefix();
+        }
+
+        private void nextPrefix() {
+            prefixRead = 0;
+            frameRemaining = 0;
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            nextPrefix();
+            skipRemaining = 0;
+        }
+    }
+
+}
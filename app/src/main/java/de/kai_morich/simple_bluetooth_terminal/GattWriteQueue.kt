@@ -0,0 +1,201 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.bluetooth.BluetoothGatt
+import android.bluetooth.BluetoothGattCharacteristic
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import java.util.ArrayDeque
+
+/**
+ * serializes characteristic writes, as Android accepts only one outstanding GATT operation.
+ *
+ * The next write is issued from onCharacteristicWrite(). If the characteristic supports
+ * write-without-response, writes use it and every window-th write is sent acknowledged,
+ * so the peripheral has to catch up before more credits are given. Otherwise all writes
+ * are acknowledged. Failed writes are retried, then dropped and counted.
+ *
+ * The write itself is a function, so the queue runs on a BluetoothGatt of its own or on
+ * a connection owned by FastBle, which then reports the write result, see FastBleOtaLink.
+ *
+ * Thread safe, onCharacteristicWrite() is called from the GATT callback thread.
+ */
+class GattWriteQueue(
+    private val characteristic: BluetoothGattCharacteristic,
+    private val write: (ByteArray) -> Boolean,
+    private val window: Int = DEFAULT_WINDOW,
+    private val queueCapacity: Int = DEFAULT_QUEUE_CAPACITY,
+    private val maxRetries: Int = DEFAULT_MAX_RETRIES,
+    private val onWritten: ((ByteArray) -> Unit)? = null
+) {
+
+    /**
+     * write with BluetoothGatt.writeCharacteristic(), for connections with an own BluetoothGattCallback
+     */
+    @Suppress("DEPRECATION")
+    constructor(
+        gatt: BluetoothGatt,
+        characteristic: BluetoothGattCharacteristic,
+        window: Int = DEFAULT_WINDOW,
+        queueCapacity: Int = DEFAULT_QUEUE_CAPACITY,
+        maxRetries: Int = DEFAULT_MAX_RETRIES
+    ) : this(characteristic, { chunk ->
+        characteristic.value = chunk
+        gatt.writeCharacteristic(characteristic)
+    }, window, queueCapacity, maxRetries)
+
+    companion object {
+        private const val TAG = "GattWriteQueue"
+        const val DEFAULT_WINDOW = 16
+        const val DEFAULT_QUEUE_CAPACITY = 64 * 1024
+        const val DEFAULT_MAX_RETRIES = 3
+        private const val BUSY_RETRY_MILLIS = 5L
+        private const val MAX_BUSY_RETRIES = 200 // 1 second, e.g. after disconnect
+    }
+
+    class Stats(
+        val bytesWritten: Long,
+        val writes: Long,
+        val acknowledgedWrites: Long,
+        val retries: Long,
+        val drops: Long,
+        val rejected: Long,
+        val queuedBytes: Int,
+        val bytesPerSecond: Long
+    )
+
+    val withoutResponse =
+        characteristic.properties and BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE != 0
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val queue = ArrayDeque<ByteArray>()
+    private var queuedBytes = 0
+    private var current: ByteArray? = null
+    private var currentRetries = 0
+    private var busyRetries = 0
+    private var credits = window
+    private var closed = false
+
+    private var bytesWritten = 0L
+    private var writes = 0L
+    private var acknowledgedWrites = 0L
+    private var retries = 0L
+    private var drops = 0L
+    private var rejected = 0L
+    private var startMillis = 0L
+
+    private val retry = Runnable { synchronized(this) { issue() } }
+
+    /**
+     * @return false if queue is full or closed, the chunk is counted as rejected then
+     */
+    @Synchronized
+    fun enqueue(chunk: ByteArray): Boolean {
+        if (closed || (queue.isNotEmpty() && queuedBytes + chunk.size > queueCapacity)) {
+            rejected++
+            return false
+        }
+        queue.add(chunk)
+        queuedBytes += chunk.size
+        if (startMillis == 0L)
+            startMillis = SystemClock.elapsedRealtime()
+        if (current == null)
+            next()
+        return true
+    }
+
+    /**
+     * to be called from BluetoothGattCallback.onCharacteristicWrite
+     */
+    fun onCharacteristicWrite(status: Int) {
+        val written = synchronized(this) {
+            val chunk = current ?: return
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                bytesWritten += chunk.size
+                writes++
+                next()
+                chunk
+            } else if (currentRetries < maxRetries) {
+                Log.d(TAG, "write failed with status $status, retry")
+                currentRetries++
+                retries++
+                issue()
+                null
+            } else {
+                Log.e(TAG, "write failed with status $status, dropped ${chunk.size} bytes")
+                drops++
+                next()
+                null
+            }
+        }
+        written?.let { onWritten?.invoke(it) }
+    }
+
+    @Synchronized
+    fun getStats(): Stats {
+        val elapsed = if (startMillis == 0L) 0 else SystemClock.elapsedRealtime() - startMillis
+        return Stats(bytesWritten, writes, acknowledgedWrites, retries, drops, rejected, queuedBytes,
+            if (elapsed > 0) bytesWritten * 1000 / elapsed else 0)
+    }
+
+    /**
+     * chunks waiting for their write
+     */
+    @Synchronized
+    fun getQueueDepth(): Int = queue.size
+
+    /**
+     * drop queued chunks, e.g. on disconnect
+     */
+    @Synchronized
+    fun close() {
+        closed = true
+        drops += queue.size
+        queue.clear()
+        queuedBytes = 0
+        current = null
+        handler.removeCallbacks(retry)
+    }
+
+    // called with lock held
+    private fun next() {
+        val chunk = queue.poll()
+        current = chunk
+        currentRetries = 0
+        busyRetries = 0
+        if (chunk == null)
+            return
+        queuedBytes -= chunk.size
+        issue()
+    }
+
+    // called with lock held
+    private fun issue() {
+        val chunk = current ?: return
+        val acknowledged = !withoutResponse || credits <= 1
+        characteristic.writeType = if (acknowledged)
+            BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+        else
+            BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE
+        if (!write(chunk)) {
+            // another GATT operation is outstanding, not a failed write
+            if (++busyRetries > MAX_BUSY_RETRIES) {
+                Log.e(TAG, "GATT busy, dropped ${chunk.size} bytes")
+                drops++
+                next()
+                return
+            }
+            retries++
+            handler.postDelayed(retry, BUSY_RETRY_MILLIS)
+            return
+        }
+        if (acknowledged) {
+            acknowledgedWrites++
+            credits = window
+        } else {
+            credits--
+        }
+    }
+
+}
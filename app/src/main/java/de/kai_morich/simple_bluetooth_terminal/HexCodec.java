@@ -0,0 +1,173 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * table driven hex codec working on caller supplied buffers.
+ *
+ * Encoded format is the same as TextUtil.toHexString: upper case digit pairs separated by blank.
+ * Encoder and Decoder keep state, so data can be converted chunk by chunk
+ * with the same result as converting everything at once.
+ */
+final class HexCodec {
+
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] HIGH = new char[256];
+    private static final char[] LOW = new char[256];
+    private static final byte[] NIBBLE = new byte[128]; // -1 if not a hex digit
+
+    static {
+        for(int i=0; i<256; i++) {
+            HIGH[i] = DIGITS[i >>> 4];
+            LOW[i] = DIGITS[i & 0x0f];
+        }
+        for(int i=0; i<NIBBLE.length; i++)
+            NIBBLE[i] = -1;
+        for(int i=0; i<10; i++)
+            NIBBLE['0'+i] = (byte) i;
+        for(int i=0; i<6; i++) {
+            NIBBLE['A'+i] = (byte) (10+i);
+            NIBBLE['a'+i] = (byte) (10+i);
+        }
+    }
+
+    private HexCodec() {}
+
+    /**
+     * @return chars needed to encode len bytes, including separator to previous chunk
+     */
+    static int maxEncodedLength(int len) {
+        return 3 * len;
+    }
+
+    static final class Encoder {
+        private boolean separate;
+
+        /**
+         * start new output, i.e. don't prefix next byte with blank
+         */
+        void reset() {
+            separate = false;
+        }
+
+        /**
+         * @param dst needs maxEncodedLength(len) chars space
+         * @return number of chars written
+         */
+        int encode(byte[] src, int off, int len, char[] dst, int dstOff) {
+            int pos = dstOff;
+            int end = off + len;
+            int i = off;
+            if(!separate && i < end) {
+                int b = src[i++] & 0xff;
+                dst[pos++] = HIGH[b];
+                dst[pos++] = LOW[b];
+                separate = true;
+            }
+            for(; i<end; i++) {
+                int b = src[i] & 0xff;
+                dst[pos] = ' ';
+                dst[pos+1] = HIGH[b];
+                dst[pos+2] = LOW[b];
+                pos += 3;
+            }
+            return pos - dstOff;
+        }
+
+        /**
+         * encode as many bytes as fit into dst
+         * @return number of bytes consumed from src
+         */
+        int encode(byte[] src, int off, int len, CharBuffer dst) {
+            int n = Math.min(len, (dst.remaining() + (separate ? 0 : 1)) / 3);
+            if(dst.hasArray()) {
+                int written = encode(src, off, n, dst.array(), dst.arrayOffset() + dst.position());
+                dst.position(dst.position() + written);
+            } else {
+                for(int i=off; i<off+n; i++) {
+                    int b = src[i] & 0xff;
+                    if(separate)
+                        dst.put(' ');
+                    dst.put(HIGH[b]);
+                    dst.put(LOW[b]);
+                    separate = true;
+                }
+            }
+            return n;
+        }
+    }
+
+    /**
+     * non hex characters are ignored, a trailing single digit is flushed by finish()
+     */
+    static final class Decoder {
+        private int high = -1;
+
+        void reset() {
+            high = -1;
+        }
+
+        /**
+         * decode until src is consumed or dst is full
+         * @return number of chars consumed from src
+         */
+        int decode(CharSequence src, int off, int len, ByteBuffer dst) {
+            int end = off + len;
+            int i = off;
+            for(; i<end && dst.hasRemaining(); i++) {
+                char c = src.charAt(i);
+                int nibble = c < 128 ? NIBBLE[c] : -1;
+                if(nibble < 0)
+                    continue;
+                if(high < 0) {
+                    high = nibble;
+                } else {
+                    dst.put((byte) (high << 4 | nibble));
+                    high = -1;
+                }
+            }
+            return i - off;
+        }
+
+        int decode(char[] src, int off, int len, ByteBuffer dst) {
+            int end = off + len;
+            int i = off;
+            for(; i<end && dst.hasRemaining(); i++) {
+                char c = src[i];
+                int nibble = c < 128 ? NIBBLE[c] : -1;
+                if(nibble < 0)
+                    continue;
+                if(high < 0) {
+                    high = nibble;
+                } else {
+                    dst.put((byte) (high << 4 | nibble));
+                    high = -1;
+                }
+            }
+            return i - off;
+        }
+
+        /**
+         * write pending single digit as byte, like TextUtil.fromHexString
+         * @return false if dst is full
+         */
+        boolean finish(ByteBuffer dst) {
+            if(high >= 0) {
+                if(!dst.hasRemaining())
+                    return false;
+                dst.put((byte) high);
+                high = -1;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * append single byte as two digits, without separator
+     */
+    static void appendHex(StringBuilder sb, byte b) {
+        sb.append(HIGH[b & 0xff]).append(LOW[b & 0xff]);
+    }
+
+}
@@ -0,0 +1,102 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.bluetooth.BluetoothGatt
+import android.bluetooth.BluetoothGattCharacteristic
+import android.content.Context
+import org.json.JSONException
+import org.json.JSONObject
+import java.util.UUID
+
+/**
+ * persistent per device link parameters, keyed by MAC.
+ *
+ * Stores what was negotiated or resolved on the last successful connect, so the next
+ * connect to the same unit can request it directly instead of probing again.
+ */
+class LinkProfileStore(context: Context) {
+
+    /**
+     * 0 / null = unknown
+     */
+    data class LinkProfile(
+        val mtu: Int = 0,
+        val txPhy: Int = 0,
+        val rxPhy: Int = 0,
+        val serviceUuid: String? = null,
+        val characteristicUuid: String? = null,
+        val connectionPriority: Int = -1,
+        val updated: Long = 0
+    )
+
+    companion object {
+        private const val PREFS = "link_profiles"
+
+        /**
+         * characteristic used for notify and write: the preferred one if present, else the
+         * first one supporting both in any service
+         * @return service and characteristic UUID, or null if none found
+         */
+        fun resolveCharacteristic(gatt: BluetoothGatt, serviceUuid: String?, characteristicUuid: String?): Pair<String, String>? {
+            if (serviceUuid != null && characteristicUuid != null) {
+                val characteristic = gatt.getService(UUID.fromString(serviceUuid))
+                    ?.getCharacteristic(UUID.fromString(characteristicUuid))
+                if (characteristic != null)
+                    return Pair(serviceUuid, characteristicUuid)
+            }
+            val notify = BluetoothGattCharacteristic.PROPERTY_NOTIFY
+            val write = BluetoothGattCharacteristic.PROPERTY_WRITE or BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+            for (service in gatt.services) {
+                for (characteristic in service.characteristics) {
+                    val properties = characteristic.properties
+                    if (properties and notify != 0 && properties and write != 0)
+                        return Pair(service.uuid.toString(), characteristic.uuid.toString())
+                }
+            }
+            return null
+        }
+    }
+
+    private val prefs = context.applicationContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+    private val cache = HashMap<String, LinkProfile>()
+
+    fun get(mac: String): LinkProfile? {
+        cache[mac]?.let { return it }
+        val json = prefs.getString(mac, null) ?: return null
+        val profile = try {
+            val o = JSONObject(json)
+            LinkProfile(
+                o.optInt("mtu"),
+                o.optInt("txPhy"),
+                o.optInt("rxPhy"),
+                if (o.has("service")) o.getString("service") else null,
+                if (o.has("characteristic")) o.getString("characteristic") else null,
+                o.optInt("priority", -1),
+                o.optLong("updated")
+            )
+        } catch (e: JSONException) {
+            return null
+        }
+        cache[mac] = profile
+        return profile
+    }
+
+    fun update(mac: String, change: (LinkProfile) -> LinkProfile) {
+        val profile = change(get(mac) ?: LinkProfile()).copy(updated = System.currentTimeMillis())
+        cache[mac] = profile
+        val o = JSONObject()
+            .put("mtu", profile.mtu)
+            .put("txPhy", profile.txPhy)
+            .put("rxPhy", profile.rxPhy)
+            .put("priority", profile.connectionPriority)
+            .put("updated", profile.updated)
+        profile.serviceUuid?.let { o.put("service", it) }
+        profile.characteristicUuid?.let { o.put("characteristic", it) }
+        prefs.edit().putString(mac, o.toString()).apply()
+    }
+
+    fun remove(mac: String) {
+        cache.remove(mac)
+        prefs.edit().remove(mac).apply()
+    }
+
+}
@@ -0,0 +1,79 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.os.Build
+import android.util.Log
+import com.clj.fastble.BleManager
+import com.clj.fastble.callback.BleMtuChangedCallback
+import com.clj.fastble.data.BleDevice
+import com.clj.fastble.exception.BleException
+
+/**
+ * negotiates the ATT MTU with as few round trips as possible.
+ *
+ * Requests MAX_MTU once, the stack answers with min(ours, device's). Only if a device
+ * rejects the request, a binary search for the largest accepted value follows, bounded
+ * to maxAttempts requests. The result is kept in the LinkProfileStore, so a reconnect
+ * requests the known value directly. The FastBle write split size is global and left at
+ * the default, the MTU is per device, so links split to MTU - 3 themselves.
+ */
+class MtuNegotiator(private val profiles: LinkProfileStore, private val maxAttempts: Int = DEFAULT_MAX_ATTEMPTS) {
+
+    companion object {
+        private const val TAG = "MtuNegotiator"
+        const val DEFAULT_MTU = 23
+        const val MAX_MTU = 512
+        const val DEFAULT_MAX_ATTEMPTS = 6
+    }
+
+    /**
+     * @param callback called with negotiated MTU, DEFAULT_MTU if negotiation failed
+     */
+    fun negotiate(bleDevice: BleDevice, callback: (Int) -> Unit) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            apply(bleDevice, DEFAULT_MTU, false, callback)
+            return
+        }
+        val cached = profiles.get(bleDevice.mac)?.mtu ?: 0
+        val target = if (cached > DEFAULT_MTU) cached else MAX_MTU
+        request(bleDevice, target, DEFAULT_MTU, target, 1, callback)
+    }
+
+    fun forget(bleDevice: BleDevice) {
+        profiles.update(bleDevice.mac) { it.copy(mtu = 0) }
+    }
+
+    /**
+     * request mtu, largest accepted value is known to be in [low, high]
+     */
+    private fun request(bleDevice: BleDevice, mtu: Int, low: Int, high: Int, attempt: Int, callback: (Int) -> Unit) {
+        BleManager.getInstance().setMtu(bleDevice, mtu, object : BleMtuChangedCallback() {
+            override fun onMtuChanged(negotiated: Int) {
+                Log.d(TAG, "MTU $negotiated after $attempt request(s)")
+                // below the request means the device limit was reached
+                if (negotiated < mtu || mtu >= high || attempt >= maxAttempts) {
+                    apply(bleDevice, negotiated, true, callback)
+                    return
+                }
+                request(bleDevice, (mtu + high + 1) / 2, mtu, high, attempt + 1, callback)
+            }
+
+            override fun onSetMTUFailure(exception: BleException) {
+                Log.d(TAG, "MTU $mtu rejected: ${exception.description}")
+                val newHigh = mtu - 1
+                if (attempt >= maxAttempts || newHigh <= low) {
+                    // low was accepted before or is the ATT default
+                    apply(bleDevice, low, low > DEFAULT_MTU, callback)
+                    return
+                }
+                request(bleDevice, (low + newHigh + 1) / 2, low, newHigh, attempt + 1, callback)
+            }
+        })
+    }
+
+    private fun apply(bleDevice: BleDevice, mtu: Int, cache: Boolean, callback: (Int) -> Unit) {
+        if (cache)
+            profiles.update(bleDevice.mac) { it.copy(mtu = mtu) }
+        callback(mtu)
+    }
+
+}
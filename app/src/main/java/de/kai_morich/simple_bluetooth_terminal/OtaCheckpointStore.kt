@@ -0,0 +1,73 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.content.Context
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * persistent OTA progress per device, keyed by MAC.
+ *
+ * A checkpoint is only valid for the image with the same SHA-256 hash and size,
+ * so a resumed transfer never mixes two images.
+ */
+class OtaCheckpointStore(context: Context) {
+
+    data class Checkpoint(
+        val hash: String,
+        val size: Long,
+        val offset: Long,
+        val payloadSize: Int,
+        val version: Int,
+        val updated: Long = 0
+    )
+
+    /**
+     * checkpoint access for one device, as used by OtaEngine
+     */
+    inner class DeviceCheckpoints(val mac: String) {
+        fun load(): Checkpoint? = get(mac)
+        fun save(checkpoint: Checkpoint) = put(mac, checkpoint)
+        fun clear() = remove(mac)
+    }
+
+    companion object {
+        private const val PREFS = "ota_checkpoints"
+    }
+
+    private val prefs = context.applicationContext.getSharedPreferences(PREFS, Context.MODE_PRIVATE)
+
+    fun forDevice(mac: String) = DeviceCheckpoints(mac)
+
+    fun get(mac: String): Checkpoint? {
+        val json = prefs.getString(mac, null) ?: return null
+        return try {
+            val o = JSONObject(json)
+            Checkpoint(
+                o.getString("hash"),
+                o.getLong("size"),
+                o.getLong("offset"),
+                o.getInt("payloadSize"),
+                o.getInt("version"),
+                o.optLong("updated")
+            )
+        } catch (e: JSONException) {
+            null
+        }
+    }
+
+    fun put(mac: String, checkpoint: Checkpoint) {
+        val o = JSONObject()
+            .put("hash", checkpoint.hash)
+            .put("size", checkpoint.size)
+            .put("offset", checkpoint.offset)
+            .put("payloadSize", checkpoint.payloadSize)
+            .put("version", checkpoint.version)
+            .put("updated", System.currentTimeMillis())
+        prefs.edit().putString(mac, o.toString()).apply()
+    }
+
+    fun remove(mac: String) {
+        prefs.edit().remove(mac).apply()
+    }
+
+}
@@ -0,0 +1,550 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.security.MessageDigest
+import java.util.ArrayDeque
+import java.util.concurrent.Executors
+import java.util.zip.CRC32
+
+/**
+ * streams a firmware image to the device with the AA..BB OTA frame protocol.
+ *
+ * Sequence: 55 36 AA handshake answered by FF AA 57 FF BB, then START, HEADER,
+ * DATA frames sized to the link write size, END. Control frames are sent stop-and-wait,
+ * of the DATA frames up to windowSize are in flight.
+ *
+ * Frames carry no sequence number, so the device is expected to answer every frame in
+ * order with ACK or NACK. An ACK releases the oldest frame in flight. After a NACK the
+ * device also rejects the frames sent behind it, those replies are skipped and all frames
+ * in flight are sent again (go-back-N). Same on ack timeout.
+ *
+ * With checkpoints, the acknowledged offset is saved every checkpointInterval bytes and
+ * on failure. Started again with the same image (by SHA-256), the transfer resumes there.
+ * The resume offset is sent in the second HEADER word, which is 0 for a full transfer.
+ * If the device rejects such a HEADER, the transfer restarts from offset 0. A device
+ * ignoring the offset fails the image CRC at END instead, so the checkpoint is cleared
+ * when END is NACKed, times out or fails, and the next start transfers the whole image.
+ *
+ * With metrics, sent frames, retransmits, NACKs, timeouts, link queue depth and the
+ * send to ACK latency of frames sent only once are recorded.
+ *
+ * Hashing and reading the image run on an own I/O thread, which reads up to windowSize
+ * frames ahead, so the handler thread never waits for the file.
+ *
+ * Not thread safe, call start(), onReceive() and cancel() from the handler thread.
+ */
+class OtaEngine(
+    private val link: Link,
+    private val firmware: () -> InputStream,
+    private val listener: Listener,
+    private val config: Config = Config(),
+    private val handler: Handler = Handler(Looper.getMainLooper()),
+    private val checkpoints: OtaCheckpointStore.DeviceCheckpoints? = null,
+    private val metrics: OtaMetrics? = null,
+    private val image: Image? = null
+) {
+
+    interface Link {
+        /**
+         * max bytes per write, i.e. MTU - 3
+         */
+        val maxWriteSize: Int
+
+        /**
+         * asynchronous, writes have to be sent in call order. The link may keep data
+         * until it is sent, the engine does not modify it afterwards
+         */
+        fun write(data: ByteArray)
+
+        /**
+         * writes queued but not yet sent, for metrics
+         */
+        val queueDepth: Int
+            get() = 0
+    }
+
+    interface Listener {
+        fun onProgress(acknowledged: Long, total: Long)
+        fun onComplete()
+        fun onError(message: String)
+    }
+
+    class Config(
+        val windowSize: Int = 8,
+        val ackTimeoutMillis: Long = 2000,
+        val maxRetries: Int = 5,
+        val version: Int = 0,
+        val checkpointInterval: Int = 16 * 1024,
+        /** the known firmware leaves the CRC of its replies 0 */
+        val acceptZeroCrc: Boolean = true
+    )
+
+    /**
+     * size, CRC32 and SHA-256 of a firmware image, e.g. computed once for several devices
+     */
+    class Image(val size: Long, val crc: Int, val sha256: String) {
+        companion object {
+            /**
+             * reads and closes the stream, call off the main thread
+             */
+            @JvmStatic
+            fun of(stream: InputStream): Image {
+                val crc = CRC32()
+                val digest = MessageDigest.getInstance("SHA-256")
+                val buffer = ByteArray(8192)
+                var size = 0L
+                stream.use {
+                    while (true) {
+                        val len = it.read(buffer)
+                        if (len < 0) break
+                        crc.update(buffer, 0, len)
+                        digest.update(buffer, 0, len)
+                        size += len
+                    }
+                }
+                return Image(size, crc.value.toInt(), digest.digest().joinToString("") { "%02x".format(it) })
+            }
+        }
+    }
+
+    enum class State { IDLE, PREPARE, HANDSHAKE, START, HEADER, DATA, END, DONE, FAILED }
+
+    private class Frame(val data: ByteArray, var payloadLength: Int = 0) {
+        var sentNanos = 0L
+        var retransmitted = false
+    }
+
+    companion object {
+        private const val TAG = "OtaEngine"
+        private val HANDSHAKE = byteArrayOf(0x55, 0x36, OtaFrameEncoder.SOF)
+        private const val COMMAND_START: Byte = 0
+        private const val COMMAND_END: Byte = 1
+    }
+
+    var state = State.IDLE
+        private set
+
+    private val encoder = OtaFrameEncoder()
+    private val inFlight = ArrayDeque<Frame>()
+    // full size DATA frames are reused once acknowledged
+    private val freeFrames = ArrayDeque<Frame>()
+    // DATA frames read ahead by the I/O thread
+    private val ready = ArrayDeque<Frame>()
+    private val io = Executors.newSingleThreadExecutor()
+    private var input: InputStream? = null // I/O thread only
+    private var ioGeneration = 0 // results of I/O tasks started before open or fail are dropped
+    private var reading = false
+    private var payloadSize = 0
+    private var headerPayload = ByteArray(0)
+    private var imageCrc = 0
+    private var imageHash = ""
+    private var resumeOffset = 0L
+    private var checkpointed = 0L
+    private var total = 0L
+    private var read = 0L
+    private var acknowledged = 0L
+    private var retries = 0
+    private var staleReplies = 0
+    private val timeout = Runnable { onTimeout() }
+
+    /**
+     * hashes the image on the I/O thread if no Image was given, then starts the handshake
+     */
+    fun start() {
+        check(state == State.IDLE) { "already started" }
+        payloadSize = minOf(link.maxWriteSize - OtaFrameEncoder.OVERHEAD, OtaFrameEncoder.MAX_PAYLOAD_LENGTH)
+        if (payloadSize < 1) {
+            fail("write size ${link.maxWriteSize} too small")
+            return
+        }
+        state = State.PREPARE
+        if (image != null) {
+            onImage(image)
+            return
+        }
+        val generation = ioGeneration
+        io.execute {
+            val result: Any = try {
+                Image.of(firmware())
+            } catch (e: Exception) {
+                e
+            }
+            handler.post {
+                if (generation != ioGeneration)
+                    return@post
+                if (result is Image)
+                    onImage(result)
+                else
+                    fail("firmware read failed: ${(result as Exception).message}")
+            }
+        }
+    }
+
+    private fun onImage(image: Image) {
+        total = image.size
+        if (total == 0L || total > 0xffffffffL) {
+            fail("invalid firmware size $total")
+            return
+        }
+        imageCrc = image.crc
+        imageHash = image.sha256
+        val checkpoint = checkpoints?.load()
+        if (checkpoint != null) {
+            if (checkpoint.hash == imageHash && checkpoint.size == total && checkpoint.version == config.version
+                && checkpoint.offset > 0 && checkpoint.offset < total)
+                resumeOffset = checkpoint.offset
+            else
+                checkpoints?.clear()
+        }
+        Log.d(TAG, "firmware $total bytes, crc $imageCrc, $payloadSize bytes per frame, resume at $resumeOffset")
+        openInput(resumeOffset) { enter(State.HANDSHAKE) }
+    }
+
+    /**
+     * open firmware positioned at offset on the I/O thread and prepare HEADER for it
+     * @param then called on the handler thread once opened
+     */
+    private fun openInput(offset: Long, then: () -> Unit) {
+        val generation = ++ioGeneration
+        ready.clear()
+        reading = false
+        read = offset
+        acknowledged = offset
+        checkpointed = offset
+        headerPayload = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+            .putInt(total.toInt())
+            .putInt(offset.toInt())
+            .putInt(imageCrc)
+            .putInt(config.version)
+            .array()
+        io.execute {
+            val error = try {
+                closeStream()
+                val stream = firmware()
+                input = stream
+                var skipped = 0L
+                while (skipped < offset) {
+                    val n = stream.skip(offset - skipped)
+                    if (n <= 0) {
+                        if (stream.read() < 0)
+                            throw IOException("firmware shorter than $offset bytes")
+                        skipped++
+                    } else {
+                        skipped += n
+                    }
+                }
+                null
+            } catch (e: Exception) {
+                e
+            }
+            handler.post {
+                if (generation != ioGeneration)
+                    return@post
+                if (error != null) {
+                    fail("firmware read failed: ${error.message}")
+                } else {
+                    readAhead() // during handshake
+                    then()
+                }
+            }
+        }
+    }
+
+    fun cancel() {
+        if (state != State.DONE && state != State.FAILED)
+            fail("cancelled")
+    }
+
+    /**
+     * called by the link if a write failed
+     */
+    fun onLinkError(message: String) {
+        if (state != State.IDLE && state != State.DONE && state != State.FAILED)
+            fail(message)
+    }
+
+    /**
+     * feed data received from the device. replies may be split over or merged into notifications
+     */
+    fun onReceive(data: ByteArray) {
+        decoder.feed(data)
+    }
+
+    private val decoder = OtaFrameDecoder(object : OtaFrameDecoder.Listener {
+        override fun onHandshake() {
+            if (state != State.HANDSHAKE)
+                return
+            handler.removeCallbacks(timeout)
+            inFlight.clear()
+            enter(State.START)
+        }
+
+        override fun onAck() {
+            if (acceptReply())
+                this@OtaEngine.onAck()
+        }
+
+        override fun onNack() {
+            if (!acceptReply())
+                return
+            Log.d(TAG, "NACK in $state")
+            metrics?.onNack()
+            if (state == State.HEADER && resumeOffset > 0) {
+                restartFromZero()
+                return
+            }
+            if (state == State.END)
+                checkpoints?.clear() // image rejected, do not resume from the same offset again
+            staleReplies = inFlight.size - 1
+            resend()
+        }
+
+        override fun onData(buffer: ByteArray, off: Int, len: Int) {}
+
+        override fun onStatus(type: Int, buffer: ByteArray, off: Int, len: Int) {
+            Log.d(TAG, "status frame type $type, $len bytes")
+        }
+    }, OtaFrameDecoder.DEFAULT_MAX_PAYLOAD_LENGTH, config.acceptZeroCrc)
+
+    /**
+     * @return false if reply is not expected or belongs to a frame sent before a NACK
+     */
+    private fun acceptReply(): Boolean {
+        if (state != State.START && state != State.HEADER && state != State.DATA && state != State.END)
+            return false
+        if (inFlight.isEmpty())
+            return false
+        if (staleReplies > 0) {
+            staleReplies--
+            return false
+        }
+        return true
+    }
+
+    private fun onAck() {
+        val frame = inFlight.removeFirst()
+        retries = 0
+        metrics?.onAck(
+            if (frame.retransmitted) -1 else SystemClock.elapsedRealtimeNanos() - frame.sentNanos,
+            if (state == State.DATA) frame.payloadLength else 0
+        )
+        handler.removeCallbacks(timeout)
+        when (state) {
+            State.START -> enter(State.HEADER)
+            State.HEADER -> enter(State.DATA)
+            State.DATA -> {
+                acknowledged += frame.payloadLength
+                if (frame.payloadLength == payloadSize)
+                    freeFrames.add(frame)
+                if (acknowledged - checkpointed >= config.checkpointInterval)
+                    saveCheckpoint()
+                listener.onProgress(acknowledged, total)
+                if (acknowledged == total)
+                    enter(State.END)
+                else
+                    fillWindow()
+            }
+            State.END -> {
+                checkpoints?.clear()
+                closeInput()
+                state = State.DONE
+                metrics?.stop()
+                listener.onComplete()
+            }
+            else -> {}
+        }
+        // restart timer for the now oldest frame
+        handler.removeCallbacks(timeout)
+        if (inFlight.isNotEmpty())
+            handler.postDelayed(timeout, config.ackTimeoutMillis)
+    }
+
+    private fun enter(next: State) {
+        state = next
+        when (next) {
+            State.HANDSHAKE -> send(Frame(HANDSHAKE))
+            State.START -> send(Frame(encoder.encode(OtaFrameEncoder.TYPE_COMMAND, byteArrayOf(COMMAND_START))))
+            State.HEADER -> send(Frame(encoder.encode(OtaFrameEncoder.TYPE_HEADER, headerPayload)))
+            State.DATA -> fillWindow()
+            State.END -> send(Frame(encoder.encode(OtaFrameEncoder.TYPE_COMMAND, byteArrayOf(COMMAND_END))))
+            else -> {}
+        }
+    }
+
+    private fun fillWindow() {
+        while (inFlight.size < config.windowSize) {
+            val frame = ready.poll() ?: break
+            frame.retransmitted = false
+            encoder.encodeInPlace(OtaFrameEncoder.TYPE_DATA, frame.data, 0, frame.payloadLength)
+            send(frame)
+        }
+        readAhead()
+    }
+
+    /**
+     * fill frames on the I/O thread, so that up to windowSize frames are ready
+     */
+    private fun readAhead() {
+        if (reading || read >= total)
+            return
+        val frames = ArrayList<Frame>()
+        while (ready.size + frames.size < config.windowSize && read < total) {
+            val want = minOf(payloadSize.toLong(), total - read).toInt()
+            // only the last frame is shorter and gets its own buffer
+            val frame = if (want == payloadSize)
+                freeFrames.poll() ?: Frame(ByteArray(OtaFrameEncoder.frameLength(payloadSize)))
+            else
+                Frame(ByteArray(OtaFrameEncoder.frameLength(want)))
+            frame.payloadLength = want
+            frames.add(frame)
+            read += want
+        }
+        if (frames.isEmpty())
+            return
+        reading = true
+        val generation = ioGeneration
+        io.execute {
+            var error: String? = null
+            for (frame in frames) {
+                val len = try {
+                    readPayload(frame.data, frame.payloadLength)
+                } catch (e: IOException) {
+                    error = "firmware read failed: ${e.message}"
+                    break
+                }
+                if (len < frame.payloadLength) {
+                    error = "firmware shorter than $total bytes"
+                    break
+                }
+            }
+            handler.post {
+                if (generation != ioGeneration)
+                    return@post
+                reading = false
+                val message = error
+                if (message != null) {
+                    fail(message)
+                    return@post
+                }
+                ready.addAll(frames)
+                if (state == State.DATA)
+                    fillWindow()
+                else
+                    readAhead()
+            }
+        }
+    }
+
+    /**
+     * read firmware directly into the payload area of the frame, on the I/O thread
+     */
+    private fun readPayload(frame: ByteArray, want: Int): Int {
+        val stream = input ?: return 0
+        var len = 0
+        while (len < want) {
+            val n = stream.read(frame, OtaFrameEncoder.HEADER_LENGTH + len, want - len)
+            if (n < 0) break
+            len += n
+        }
+        return len
+    }
+
+    private fun send(frame: Frame) {
+        if (inFlight.isEmpty())
+            handler.postDelayed(timeout, config.ackTimeoutMillis)
+        inFlight.add(frame)
+        write(frame, false)
+    }
+
+    private fun resend() {
+        if (++retries > config.maxRetries) {
+            fail("no ACK in $state after ${config.maxRetries} retries")
+            return
+        }
+        handler.removeCallbacks(timeout)
+        for (frame in inFlight)
+            write(frame, true)
+        handler.postDelayed(timeout, config.ackTimeoutMillis)
+    }
+
+    private fun write(frame: Frame, retransmit: Boolean) {
+        frame.sentNanos = SystemClock.elapsedRealtimeNanos()
+        frame.retransmitted = frame.retransmitted || retransmit
+        // the original write can still be queued when its ACK arrives and the frame is
+        // recycled, so a retransmit must not share the buffer with the next frame
+        link.write(if (retransmit) frame.data.copyOf() else frame.data)
+        metrics?.let {
+            it.onFrameSent(frame.data.size, retransmit)
+            it.onQueueDepth(link.queueDepth)
+        }
+    }
+
+    private fun onTimeout() {
+        Log.d(TAG, "ack timeout in $state")
+        metrics?.onTimeout()
+        if (state == State.END)
+            checkpoints?.clear()
+        staleReplies = 0
+        decoder.reset() // a false SOF might still hold back the reply
+        resend()
+    }
+
+    private fun restartFromZero() {
+        Log.d(TAG, "resume at $resumeOffset rejected, restart")
+        checkpoints?.clear()
+        resumeOffset = 0
+        handler.removeCallbacks(timeout)
+        inFlight.clear()
+        retries = 0
+        staleReplies = 0
+        openInput(0) { enter(State.HEADER) }
+    }
+
+    private fun saveCheckpoint() {
+        checkpoints?.save(OtaCheckpointStore.Checkpoint(imageHash, total, acknowledged, payloadSize, config.version))
+        checkpointed = acknowledged
+    }
+
+    private fun fail(message: String) {
+        if (state == State.DATA && acknowledged > checkpointed)
+            saveCheckpoint()
+        else if (state == State.END)
+            checkpoints?.clear()
+        handler.removeCallbacks(timeout)
+        inFlight.clear()
+        closeInput()
+        state = State.FAILED
+        metrics?.stop()
+        listener.onError(message)
+    }
+
+    /**
+     * drop pending reads, close the firmware and end the I/O thread
+     */
+    private fun closeInput() {
+        ioGeneration++
+        ready.clear()
+        reading = false
+        if (io.isShutdown)
+            return
+        io.execute { closeStream() }
+        io.shutdown()
+    }
+
+    // I/O thread
+    private fun closeStream() {
+        try {
+            input?.close()
+        } catch (ignored: IOException) {
+        }
+        input = null
+    }
+
+}
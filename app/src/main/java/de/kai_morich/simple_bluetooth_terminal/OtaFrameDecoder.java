@@ -0,0 +1,227 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.zip.CRC32;
+
+/**
+ * streaming decoder for OTA frames received as notifications.
+ *
+ * Frames may be split over or merged into notifications in any way. Bytes are collected
+ * in a reusable buffer. Frames with bad length, EOF or CRC are skipped by searching the
+ * next SOF behind the start of the bad frame. A false SOF with a plausible length would
+ * make the decoder wait for data that never comes, so while waiting, a complete valid
+ * frame behind it ends the wait and is decoded. Such a frame needs a matching CRC, as
+ * a stray reply pattern inside a payload must not be taken as reply. CRC 0 is only
+ * accepted with acceptZeroCrc, for firmware that does not fill it in replies. The FF AA 57 FF BB handshake reply is no regular frame
+ * and detected separately.
+ */
+final class OtaFrameDecoder {
+
+    /**
+     * called from feed(). buffer content is only valid during the call
+     */
+    interface Listener {
+        void onHandshake();
+        void onAck();
+        void onNack();
+        void onData(byte[] buffer, int off, int len);
+        /**
+         * any other frame, e.g. replies with unknown code or device status
+         */
+        void onStatus(int type, byte[] buffer, int off, int len);
+    }
+
+    static final int DEFAULT_MAX_PAYLOAD_LENGTH = 4096;
+    private static final byte[] HANDSHAKE_REPLY = {(byte) 0xFF, OtaFrameEncoder.SOF, 0x57, (byte) 0xFF, OtaFrameEncoder.EOF};
+    private static final int REPLY_ACK = 0;
+    private static final int REPLY_NACK = 1;
+
+    private final Listener listener;
+    private final int maxPayloadLength;
+    private final boolean acceptZeroCrc;
+    private final byte[] buffer;
+    private final CRC32 crc = new CRC32();
+    private int start, end; // undecoded bytes in buffer
+    private long frames, crcErrors, framingErrors;
+
+    OtaFrameDecoder(Listener listener) {
+        this(listener, DEFAULT_MAX_PAYLOAD_LENGTH);
+    }
+
+    OtaFrameDecoder(Listener listener, int maxPayloadLength) {
+        this(listener, maxPayloadLength, false);
+    }
+
+    /**
+     * @param acceptZeroCrc skip the CRC check of frames with CRC 0
+     */
+    OtaFrameDecoder(Listener listener, int maxPayloadLength, boolean acceptZeroCrc) {
+        this.listener = listener;
+        this.acceptZeroCrc = acceptZeroCrc;
+        this.maxPayloadLength = Math.min(maxPayloadLength, OtaFrameEncoder.MAX_PAYLOAD_LENGTH);
+        buffer = new byte[OtaFrameEncoder.frameLength(this.maxPayloadLength)];
+    }
+
+    void feed(byte[] data, int off, int len) {
+        while (len > 0) {
+            if (end == buffer.length) {
+                // compact. buffer holds at least one max size frame, so decode() made room
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int n = Math.min(len, buffer.length - end);
+            System.arraycopy(data, off, buffer, end, n);
+            end += n;
+            off += n;
+            len -= n;
+            decode();
+        }
+    }
+
+    void feed(byte[] data) {
+        feed(data, 0, data.length);
+    }
+
+    void reset() {
+        start = end = 0;
+    }
+
+    long getFrameCount() { return frames; }
+    long getCrcErrorCount() { return crcErrors; }
+    long getFramingErrorCount() { return framingErrors; }
+
+    private void decode() {
+        while (start < end) {
+            int available = end - start;
+            byte first = buffer[start];
+            if (first != OtaFrameEncoder.SOF) {
+                if (first == HANDSHAKE_REPLY[0]) {
+                    int match = matchHandshake(available);
+                    if (match == HANDSHAKE_REPLY.length) {
+                        start += match;
+                        frames++;
+                        listener.onHandshake();
+                        continue;
+                    }
+                    if (match == available)
+                        break; // maybe handshake, wait for more
+                }
+                skipToSof();
+                continue;
+            }
+            if (available < OtaFrameEncoder.HEADER_LENGTH)
+                break;
+            int type = buffer[start + 1] & 0xff;
+            int len = (buffer[start + 2] & 0xff) | (buffer[start + 3] & 0xff) << 8;
+            if (len > maxPayloadLength) {
+                framingErrors++;
+                start++;
+                continue;
+            }
+            int frameLength = OtaFrameEncoder.frameLength(len);
+            if (available < frameLength) {
+                int next = findCompleteFrame(start + 1);
+                if (next < 0)
+                    break; // wait for more
+                framingErrors++;
+                start = next;
+                continue;
+            }
+            int payload = start + OtaFrameEncoder.HEADER_LENGTH;
+            if (buffer[start + frameLength - 1] != OtaFrameEncoder.EOF) {
+                framingErrors++;
+                start++;
+                continue;
+            }
+            int pos = payload + len;
+            int value = (buffer[pos] & 0xff) | (buffer[pos + 1] & 0xff) << 8
+                    | (buffer[pos + 2] & 0xff) << 16 | (buffer[pos + 3] & 0xff) << 24;
+            if (value != 0 || !acceptZeroCrc) {
+                crc.reset();
+                crc.update(buffer, payload, len);
+                if ((int) crc.getValue() != value) {
+                    crcErrors++;
+                    start++;
+                    continue;
+                }
+            }
+            start += frameLength;
+            frames++;
+            dispatch(type, payload, len);
+        }
+        if (start == end)
+            start = end = 0;
+    }
+
+    private void dispatch(int type, int payload, int len) {
+        if (type == OtaFrameEncoder.TYPE_REPLY && len == 1) {
+            int code = buffer[payload] & 0xff;
+            if (code == REPLY_ACK) {
+                listener.onAck();
+                return;
+            }
+            if (code == REPLY_NACK) {
+                listener.onNack();
+                return;
+            }
+        }
+        if (type == OtaFrameEncoder.TYPE_DATA)
+            listener.onData(buffer, payload, len);
+        else
+            listener.onStatus(type, buffer, payload, len);
+    }
+
+    /**
+     * @return number of leading bytes matching the handshake reply
+     */
+    private int matchHandshake(int available) {
+        int n = Math.min(available, HANDSHAKE_REPLY.length);
+        for (int i = 0; i < n; i++)
+            if (buffer[start + i] != HANDSHAKE_REPLY[i])
+                return i;
+        return n;
+    }
+
+    /**
+     * @return start of the first complete valid frame or handshake reply at or behind from, or -1
+     */
+    private int findCompleteFrame(int from) {
+        for (int p = from; p < end; p++) {
+            if (buffer[p] == HANDSHAKE_REPLY[0]) {
+                if (end - p >= HANDSHAKE_REPLY.length && matchesHandshakeAt(p))
+                    return p;
+                continue;
+            }
+            if (buffer[p] != OtaFrameEncoder.SOF || end - p < OtaFrameEncoder.HEADER_LENGTH)
+                continue;
+            int len = (buffer[p + 2] & 0xff) | (buffer[p + 3] & 0xff) << 8;
+            if (len > maxPayloadLength)
+                continue;
+            int frameLength = OtaFrameEncoder.frameLength(len);
+            if (end - p < frameLength || buffer[p + frameLength - 1] != OtaFrameEncoder.EOF)
+                continue;
+            int pos = p + OtaFrameEncoder.HEADER_LENGTH + len;
+            int value = (buffer[pos] & 0xff) | (buffer[pos + 1] & 0xff) << 8
+                    | (buffer[pos + 2] & 0xff) << 16 | (buffer[pos + 3] & 0xff) << 24;
+            crc.reset();
+            crc.update(buffer, p + OtaFrameEncoder.HEADER_LENGTH, len);
+            if ((int) crc.getValue() == value) // a real CRC, even with acceptZeroCrc
+                return p;
+        }
+        return -1;
+    }
+
+    private boolean matchesHandshakeAt(int p) {
+        for (int i = 0; i < HANDSHAKE_REPLY.length; i++)
+            if (buffer[p + i] != HANDSHAKE_REPLY[i])
+                return false;
+        return true;
+    }
+
+    private void skipToSof() {
+        start++;
+        while (start < end && buffer[start] != OtaFrameEncoder.SOF && buffer[start] != HANDSHAKE_REPLY[0])
+            start++;
+    }
+
+}
@@ -0,0 +1,102 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * OTA frame encoder: AA type length(LE16) payload crc32(LE32) BB.
+ *
+ * Frames are written into caller supplied buffers, nothing is allocated per frame.
+ * With encodeInPlace() the payload is read directly into the frame buffer, so
+ * it is not copied at all. The CRC32 covers the payload.
+ */
+final class OtaFrameEncoder {
+
+    static final byte SOF = (byte) 0xAA;
+    static final byte EOF = (byte) 0xBB;
+    static final int HEADER_LENGTH = 4; // SOF, type, length
+    static final int OVERHEAD = 9; // header, crc, EOF
+    static final int MAX_PAYLOAD_LENGTH = 0xffff;
+
+    static final int TYPE_COMMAND = 0;
+    static final int TYPE_DATA = 1;
+    static final int TYPE_HEADER = 2;
+    static final int TYPE_REPLY = 3;
+
+    private final CRC32 crc = new CRC32();
+
+    static int frameLength(int payloadLength) {
+        return payloadLength + OVERHEAD;
+    }
+
+    /**
+     * @param dst needs frameLength(len) bytes space at dstOff
+     * @return frame length
+     */
+    int encode(int type, byte[] payload, int off, int len, byte[] dst, int dstOff) {
+        checkLength(len);
+        System.arraycopy(payload, off, dst, dstOff + HEADER_LENGTH, len);
+        return encodeInPlace(type, dst, dstOff, len);
+    }
+
+    /**
+     * frame with payload already at dst[dstOff + HEADER_LENGTH], header and trailer are added around it
+     * @return frame length
+     */
+    int encodeInPlace(int type, byte[] dst, int dstOff, int len) {
+        checkLength(len);
+        dst[dstOff] = SOF;
+        dst[dstOff + 1] = (byte) type;
+        dst[dstOff + 2] = (byte) len;
+        dst[dstOff + 3] = (byte) (len >>> 8);
+        crc.reset();
+        crc.update(dst, dstOff + HEADER_LENGTH, len);
+        int pos = dstOff + HEADER_LENGTH + len;
+        putCrc(dst, pos, (int) crc.getValue());
+        dst[pos + 4] = EOF;
+        return frameLength(len);
+    }
+
+    /**
+     * encode at dst position, also for direct buffers
+     * @return frame length, dst position is advanced by it
+     */
+    int encode(int type, byte[] payload, int off, int len, ByteBuffer dst) {
+        checkLength(len);
+        if (dst.hasArray()) {
+            int n = encode(type, payload, off, len, dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + n);
+            return n;
+        }
+        crc.reset();
+        crc.update(payload, off, len);
+        int value = (int) crc.getValue();
+        dst.put(SOF).put((byte) type).put((byte) len).put((byte) (len >>> 8));
+        dst.put(payload, off, len);
+        dst.put((byte) value).put((byte) (value >>> 8)).put((byte) (value >>> 16)).put((byte) (value >>> 24));
+        dst.put(EOF);
+        return frameLength(len);
+    }
+
+    /**
+     * encode into a new array, for rarely sent control frames
+     */
+    byte[] encode(int type, byte[] payload) {
+        byte[] frame = new byte[frameLength(payload.length)];
+        encode(type, payload, 0, payload.length, frame, 0);
+        return frame;
+    }
+
+    private static void putCrc(byte[] dst, int pos, int value) {
+        dst[pos] = (byte) value;
+        dst[pos + 1] = (byte) (value >>> 8);
+        dst[pos + 2] = (byte) (value >>> 16);
+        dst[pos + 3] = (byte) (value >>> 24);
+    }
+
+    private static void checkLength(int len) {
+        if (len < 0 || len > MAX_PAYLOAD_LENGTH)
+            throw new IllegalArgumentException("invalid payload length " + len);
+    }
+
+}
@@ -0,0 +1,186 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.os.SystemClock
+
+/**
+ * OTA transfer counters and send to ACK latency histogram.
+ *
+ * Latency buckets are powers of two in milliseconds, bucket i counts latencies below
+ * 2^i ms, the last one everything above. Percentiles are the bucket upper bound, so they
+ * are accurate to a factor of two, which is enough to compare MTU, PHY and window settings.
+ *
+ * Thread safe, GATT callbacks record from binder threads.
+ */
+class OtaMetrics {
+
+    companion object {
+        const val BUCKETS = 16
+    }
+
+    class Snapshot(
+        val settings: String,
+        val elapsedMillis: Long,
+        val bytesAcknowledged: Long,
+        val bytesPerSecond: Long,
+        val framesSent: Long,
+        val bytesSent: Long,
+        val retransmits: Long,
+        val nacks: Long,
+        val timeouts: Long,
+        val queueDepth: Int,
+        val maxQueueDepth: Int,
+        val latencyCount: Long,
+        val latencyMeanMillis: Double,
+        val latencyMaxMillis: Double,
+        val latencyP50Millis: Double,
+        val latencyP90Millis: Double,
+        val latencyP99Millis: Double,
+        val latencyHistogram: LongArray
+    ) {
+        /**
+         * compact multi line summary for the overlay and logs
+         */
+        fun format(): String =
+            "$settings\n" +
+            "%.1f KB/s  %d/%d B  %.1f s\n".format(bytesPerSecond / 1024.0, bytesAcknowledged, bytesSent, elapsedMillis / 1000.0) +
+            "frames $framesSent  retx $retransmits  nack $nacks  timeout $timeouts\n" +
+            "queue $queueDepth (max $maxQueueDepth)\n" +
+            "rtt ms  mean %.1f  p50 %.0f  p90 %.0f  p99 %.0f  max %.1f".format(
+                latencyMeanMillis, latencyP50Millis, latencyP90Millis, latencyP99Millis, latencyMaxMillis)
+    }
+
+    private var settings = ""
+    private var startMillis = 0L
+    private var endMillis = 0L
+    private var bytesAcknowledged = 0L
+    private var framesSent = 0L
+    private var bytesSent = 0L
+    private var retransmits = 0L
+    private var nacks = 0L
+    private var timeouts = 0L
+    private var queueDepth = 0
+    private var maxQueueDepth = 0
+    private val histogram = LongArray(BUCKETS)
+    private var latencyCount = 0L
+    private var latencySumNanos = 0L
+    private var latencyMaxNanos = 0L
+
+    /**
+     * clear all values, e.g. when a transfer starts
+     * @param settings shown with the values, e.g. "MTU 247, 2M PHY, window 8"
+     */
+    @Synchronized
+    fun reset(settings: String = "") {
+        this.settings = settings
+        startMillis = SystemClock.elapsedRealtime()
+        endMillis = 0
+        bytesAcknowledged = 0
+        framesSent = 0
+        bytesSent = 0
+        retransmits = 0
+        nacks = 0
+        timeouts = 0
+        queueDepth = 0
+        maxQueueDepth = 0
+        histogram.fill(0)
+        latencyCount = 0
+        latencySumNanos = 0
+        latencyMaxNanos = 0
+    }
+
+    /**
+     * stop the clock for bytes/s, e.g. on complete or error
+     */
+    @Synchronized
+    fun stop() {
+        if (endMillis == 0L)
+            endMillis = SystemClock.elapsedRealtime()
+    }
+
+    @Synchronized
+    fun onFrameSent(bytes: Int, retransmit: Boolean) {
+        if (startMillis == 0L)
+            startMillis = SystemClock.elapsedRealtime()
+        framesSent++
+        bytesSent += bytes
+        if (retransmit)
+            retransmits++
+    }
+
+    /**
+     * @param latencyNanos < 0 if unknown, e.g. for retransmitted frames the ACK is ambiguous
+     * @param payloadBytes firmware bytes acknowledged with this frame
+     */
+    @Synchronized
+    fun onAck(latencyNanos: Long, payloadBytes: Int) {
+        bytesAcknowledged += payloadBytes
+        if (latencyNanos < 0)
+            return
+        val millis = latencyNanos / 1_000_000
+        val bucket = minOf(64 - java.lang.Long.numberOfLeadingZeros(millis), BUCKETS - 1)
+        histogram[bucket]++
+        latencyCount++
+        latencySumNanos += latencyNanos
+        latencyMaxNanos = maxOf(latencyMaxNanos, latencyNanos)
+    }
+
+    @Synchronized
+    fun onNack() {
+        nacks++
+    }
+
+    @Synchronized
+    fun onTimeout() {
+        timeouts++
+    }
+
+    /**
+     * @param depth writes queued but not yet sent
+     */
+    @Synchronized
+    fun onQueueDepth(depth: Int) {
+        queueDepth = depth
+        maxQueueDepth = maxOf(maxQueueDepth, depth)
+    }
+
+    @Synchronized
+    fun snapshot(): Snapshot {
+        val now = if (endMillis != 0L) endMillis else SystemClock.elapsedRealtime()
+        val elapsed = if (startMillis == 0L) 0 else now - startMillis
+        return Snapshot(
+            settings,
+            elapsed,
+            bytesAcknowledged,
+            if (elapsed > 0) bytesAcknowledged * 1000 / elapsed else 0,
+            framesSent,
+            bytesSent,
+            retransmits,
+            nacks,
+            timeouts,
+            queueDepth,
+            maxQueueDepth,
+            latencyCount,
+            if (latencyCount > 0) latencySumNanos / 1e6 / latencyCount else 0.0,
+            latencyMaxNanos / 1e6,
+            percentile(0.5),
+            percentile(0.9),
+            percentile(0.99),
+            histogram.copyOf()
+        )
+    }
+
+    // called with lock held
+    private fun percentile(p: Double): Double {
+        if (latencyCount == 0L)
+            return 0.0
+        val rank = Math.ceil(p * latencyCount).toLong()
+        var count = 0L
+        for (i in 0 until BUCKETS) {
+            count += histogram[i]
+            if (count >= rank)
+                return minOf((1L shl i).toDouble(), latencyMaxNanos / 1e6)
+        }
+        return latencyMaxNanos / 1e6
+    }
+
+}
@@ -0,0 +1,315 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.bluetooth.BluetoothGatt
+import android.content.Context
+import android.os.Build
+import android.os.SystemClock
+import android.util.Log
+import com.clj.fastble.BleManager
+import com.clj.fastble.callback.BleGattCallback
+import com.clj.fastble.callback.BleNotifyCallback
+import com.clj.fastble.data.BleDevice
+import com.clj.fastble.exception.BleException
+import java.io.ByteArrayInputStream
+import java.util.ArrayDeque
+
+/**
+ * runs OTA on a batch of devices, several of them in parallel.
+ *
+ * At most maxConcurrent devices are connected at the same time, limited by the
+ * FastBle connection limit minus devices connected elsewhere. The rest waits in a
+ * FIFO queue. Each device has its own connection, characteristic, MTU and OtaEngine.
+ * A failed device is queued again up to maxAttempts times and resumes from its
+ * checkpoint. The image is kept in memory and hashed once by the caller, so it is not
+ * read or hashed again per device or attempt.
+ *
+ * Not thread safe, call from the main thread, where FastBle calls back as well.
+ */
+class OtaOrchestrator(
+    context: Context,
+    private val listener: Listener,
+    private val maxConcurrent: Int = DEFAULT_MAX_CONCURRENT,
+    private val maxAttempts: Int = DEFAULT_MAX_ATTEMPTS,
+    private val config: OtaEngine.Config = OtaEngine.Config()
+) {
+
+    enum class State { QUEUED, CONNECTING, UPDATING, DONE, FAILED }
+
+    class DeviceStatus(val mac: String) {
+        var state = State.QUEUED
+            internal set
+        var acknowledged = 0L
+            internal set
+        var total = 0L
+            internal set
+        var attempts = 0
+            internal set
+        var error: String? = null
+            internal set
+    }
+
+    class Summary(
+        val devices: Int,
+        val queued: Int,
+        val active: Int,
+        val done: Int,
+        val failed: Int,
+        val bytes: Long,
+        val bytesPerSecond: Long
+    )
+
+    interface Listener {
+        fun onDeviceChanged(status: DeviceStatus)
+        /**
+         * throttled to PROGRESS_INTERVAL_MILLIS
+         */
+        fun onProgress(summary: Summary)
+        fun onFinished(summary: Summary)
+    }
+
+    companion object {
+        private const val TAG = "OtaOrchestrator"
+        const val DEFAULT_MAX_CONCURRENT = 4
+        const val DEFAULT_MAX_ATTEMPTS = 3
+        private const val PROGRESS_INTERVAL_MILLIS = 500L
+    }
+
+    private inner class Job(val status: DeviceStatus) {
+        var bleDevice: BleDevice? = null
+        var engine: OtaEngine? = null
+        var finished = false
+
+        /**
+         * callbacks of an earlier attempt can arrive after the next one started
+         */
+        fun isStale(attempt: Int) = finished || status.attempts != attempt
+    }
+
+    private val profiles = LinkProfileStore(context)
+    private val mtuNegotiator = MtuNegotiator(profiles)
+    private val checkpoints = OtaCheckpointStore(context)
+    private val statuses = LinkedHashMap<String, DeviceStatus>()
+    private val queue = ArrayDeque<Job>()
+    private val active = HashMap<String, Job>()
+    private var image = ByteArray(0)
+    private var imageInfo: OtaEngine.Image? = null
+    private var limit = 1
+    private var bytes = 0L
+    private var startMillis = 0L
+    private var lastProgressMillis = 0L
+    private var running = false
+
+    val devices: Collection<DeviceStatus>
+        get() = statuses.values
+
+    /**
+     * @param macs duplicates are ignored
+     * @param info size and hashes of image, e.g. from OtaEngine.Image.of() on a background thread
+     */
+    fun start(macs: List<String>, image: ByteArray, info: OtaEngine.Image) {
+        check(!running) { "already running" }
+        running = true
+        this.image = image
+        imageInfo = info
+        statuses.clear()
+        for (mac in macs) {
+            if (statuses.containsKey(mac)) continue
+            val status = DeviceStatus(mac)
+            statuses[mac] = status
+            queue.add(Job(status))
+        }
+        val ble = BleManager.getInstance()
+        val connectedElsewhere = ble.allConnectedDevice?.size ?: 0
+        limit = minOf(maxConcurrent, ble.maxConnectCount - connectedElsewhere).coerceAtLeast(1)
+        Log.d(TAG, "${statuses.size} devices, $limit in parallel")
+        bytes = 0
+        startMillis = SystemClock.elapsedRealtime()
+        schedule()
+    }
+
+    /**
+     * stops all transfers, unfinished devices are reported as failed
+     */
+    fun cancel() {
+        if (!running) return
+        while (queue.isNotEmpty())
+            end(queue.poll()!!, State.FAILED, "cancelled")
+        for (job in active.values.toList())
+            end(job, State.FAILED, "cancelled")
+        finish()
+    }
+
+    fun getSummary(): Summary {
+        var queued = 0
+        var done = 0
+        var failed = 0
+        for (status in statuses.values) {
+            when (status.state) {
+                State.QUEUED -> queued++
+                State.DONE -> done++
+                State.FAILED -> failed++
+                else -> {}
+            }
+        }
+        val elapsed = SystemClock.elapsedRealtime() - startMillis
+        return Summary(statuses.size, queued, active.size, done, failed, bytes,
+            if (elapsed > 0) bytes * 1000 / elapsed else 0)
+    }
+
+    private fun schedule() {
+        while (running && active.size < limit) {
+            val job = queue.poll() ?: break
+            active[job.status.mac] = job
+            connect(job)
+        }
+        if (running && active.isEmpty() && queue.isEmpty())
+            finish()
+    }
+
+    private fun finish() {
+        running = false
+        listener.onFinished(getSummary())
+    }
+
+    private fun connect(job: Job) {
+        job.finished = false
+        val attempt = ++job.status.attempts
+        update(job, State.CONNECTING)
+        BleManager.getInstance().connect(job.status.mac, object : BleGattCallback() {
+            override fun onStartConnect() {}
+
+            override fun onConnectFail(bleDevice: BleDevice?, exception: BleException?) {
+                retry(job, attempt, "connect failed: ${exception?.description}")
+            }
+
+            override fun onConnectSuccess(bleDevice: BleDevice?, gatt: BluetoothGatt?, status: Int) {
+                if (job.isStale(attempt)) {
+                    // cancelled while connecting
+                    bleDevice?.let { BleManager.getInstance().disconnect(it) }
+                    return
+                }
+                if (bleDevice == null || gatt == null) {
+                    retry(job, attempt, "connect failed")
+                    return
+                }
+                job.bleDevice = bleDevice
+                prepare(job, attempt, bleDevice, gatt)
+            }
+
+            override fun onDisConnected(isActiveDisConnected: Boolean, device: BleDevice?, gatt: BluetoothGatt?, status: Int) {
+                if (!job.isStale(attempt))
+                    job.engine?.onLinkError("disconnected") ?: retry(job, attempt, "disconnected")
+            }
+        })
+    }
+
+    private fun prepare(job: Job, attempt: Int, bleDevice: BleDevice, gatt: BluetoothGatt) {
+        val mac = bleDevice.mac
+        val profile = profiles.get(mac)
+        val resolved = LinkProfileStore.resolveCharacteristic(
+            gatt,
+            profile?.serviceUuid ?: OtaUpdateManager.uuid_service,
+            profile?.characteristicUuid ?: OtaUpdateManager.uuid_notify
+        )
+        if (resolved == null) {
+            end(job, State.FAILED, "no OTA characteristic")
+            schedule()
+            return
+        }
+        profiles.update(mac) { it.copy(serviceUuid = resolved.first, characteristicUuid = resolved.second) }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            BleManager.getInstance().requestConnectionPriority(bleDevice, BluetoothGatt.CONNECTION_PRIORITY_HIGH)
+        // FastBle does not queue GATT operations, so MTU follows in the notify callback
+        BleManager.getInstance().notify(bleDevice, resolved.first, resolved.second, object : BleNotifyCallback() {
+            override fun onNotifySuccess() {
+                mtuNegotiator.negotiate(bleDevice) { mtu ->
+                    if (!job.isStale(attempt))
+                        startEngine(job, attempt, bleDevice, resolved, mtu)
+                }
+            }
+
+            override fun onNotifyFailure(exception: BleException?) {
+                retry(job, attempt, "notify failed: ${exception?.description}")
+            }
+
+            override fun onCharacteristicChanged(data: ByteArray) {
+                job.engine?.onReceive(data)
+            }
+        })
+    }
+
+    private fun startEngine(job: Job, attempt: Int, bleDevice: BleDevice, uuids: Pair<String, String>, mtu: Int) {
+        val link = FastBleOtaLink(bleDevice, mtu - 3, null, uuids.first, uuids.second) {
+            job.engine?.onLinkError(it)
+        }
+        val engine = OtaEngine(link, { ByteArrayInputStream(image) }, object : OtaEngine.Listener {
+            override fun onProgress(acknowledged: Long, total: Long) {
+                val status = job.status
+                // a resumed attempt starts at or below the last acknowledged offset
+                if (acknowledged > status.acknowledged)
+                    bytes += acknowledged - status.acknowledged
+                status.acknowledged = acknowledged
+                status.total = total
+                listener.onDeviceChanged(status)
+                reportProgress()
+            }
+
+            override fun onComplete() {
+                end(job, State.DONE, null)
+                schedule()
+            }
+
+            override fun onError(message: String) {
+                retry(job, attempt, message)
+            }
+        }, config, checkpoints = checkpoints.forDevice(bleDevice.mac), image = imageInfo)
+        job.engine = engine
+        update(job, State.UPDATING)
+        engine.start()
+    }
+
+    private fun retry(job: Job, attempt: Int, message: String) {
+        if (job.isStale(attempt)) return
+        Log.d(TAG, "${job.status.mac} attempt ${job.status.attempts} failed: $message")
+        if (job.status.attempts >= maxAttempts || !running) {
+            end(job, State.FAILED, message)
+        } else {
+            release(job)
+            job.status.error = message
+            update(job, State.QUEUED)
+            queue.add(job)
+        }
+        schedule()
+    }
+
+    private fun end(job: Job, state: State, message: String?) {
+        release(job)
+        job.status.error = message
+        update(job, state)
+    }
+
+    private fun release(job: Job) {
+        job.finished = true
+        active.remove(job.status.mac)
+        val engine = job.engine
+        job.engine = null
+        if (engine != null && engine.state != OtaEngine.State.DONE && engine.state != OtaEngine.State.FAILED)
+            engine.cancel()
+        job.bleDevice?.let { BleManager.getInstance().disconnect(it) }
+        job.bleDevice = null
+    }
+
+    private fun update(job: Job, state: State) {
+        job.status.state = state
+        listener.onDeviceChanged(job.status)
+        reportProgress()
+    }
+
+    private fun reportProgress() {
+        val now = SystemClock.elapsedRealtime()
+        if (now - lastProgressMillis < PROGRESS_INTERVAL_MILLIS) return
+        lastProgressMillis = now
+        listener.onProgress(getSummary())
+    }
+
+}
@@ -0,0 +1,123 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick matcher for multiple byte patterns.
+ *
+ * The automaton is compiled into a full transition table with 256 entries per state, so
+ * feeding a byte is one table lookup and matching is allocation free. The matcher itself
+ * is immutable, the caller keeps the state between chunks, so matches spanning chunk
+ * boundaries are found.
+ */
+final class PatternMatcher {
+
+    interface Sink {
+        /**
+         * @param end stream position after the last byte of the match
+         */
+        void onMatch(int pattern, long end);
+    }
+
+    static final int INITIAL_STATE = 0;
+
+    private final byte[][] patterns;
+    private final int[] next;       // state << 8 | byte -> state
+    private final int[] output;     // pattern ending in state, -1 if none
+    private final int[] outputLink; // next shorter suffix state with output, 0 if none
+
+    PatternMatcher(List<byte[]> patterns) {
+        if (patterns.isEmpty())
+            throw new IllegalArgumentException("no pattern");
+        this.patterns = patterns.toArray(new byte[0][]);
+        int maxStates = 1;
+        for (byte[] pattern : this.patterns) {
+            if (pattern.length == 0)
+                throw new IllegalArgumentException("empty pattern");
+            maxStates += pattern.length;
+        }
+        int[] trie = new int[maxStates << 8]; // 0 = no child, root is never a child
+        int[] out = new int[maxStates];
+        Arrays.fill(out, -1);
+        int states = 1;
+        for (int p = 0; p < this.patterns.length; p++) {
+            int state = INITIAL_STATE;
+            for (byte b : this.patterns[p]) {
+                int i = state << 8 | (b & 0xff);
+                if (trie[i] == 0)
+                    trie[i] = states++;
+                state = trie[i];
+            }
+            if (out[state] < 0) // duplicate patterns are reported once, with the first index
+                out[state] = p;
+        }
+        // breadth first, so fail states are complete before their children are visited
+        next = Arrays.copyOf(trie, states << 8);
+        output = Arrays.copyOf(out, states);
+        outputLink = new int[states];
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0, tail = 0;
+        for (int c = 0; c < 256; c++) {
+            int child = next[c];
+            if (child != 0)
+                queue[tail++] = child; // fail and outputLink are root
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int c = 0; c < 256; c++) {
+                int i = state << 8 | c;
+                int child = trie[i];
+                int fallback = next[fail[state] << 8 | c];
+                if (child == 0) {
+                    next[i] = fallback;
+                } else {
+                    fail[child] = fallback;
+                    outputLink[child] = output[fallback] >= 0 ? fallback : outputLink[fallback];
+                    queue[tail++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * patterns separated by ';', either text encoded as UTF-8 or hex digits, e.g. "0d 0a;ff00"
+     */
+    static PatternMatcher parse(String query, boolean hex) {
+        List<byte[]> patterns = new ArrayList<>();
+        for (String part : query.split(";")) {
+            byte[] pattern = hex ? TextUtil.fromHexString(part) : part.getBytes(StandardCharsets.UTF_8);
+            if (pattern.length > 0)
+                patterns.add(pattern);
+        }
+        return new PatternMatcher(patterns);
+    }
+
+    int getPatternCount() {
+        return patterns.length;
+    }
+
+    int getPatternLength(int pattern) {
+        return patterns[pattern].length;
+    }
+
+    /**
+     * @param pos stream position of data[off]
+     * @return state for the next chunk
+     */
+    int feed(int state, byte[] data, int off, int len, long pos, Sink sink) {
+        for (int i = 0; i < len; i++) {
+            state = next[state << 8 | (data[off + i] & 0xff)];
+            int match = output[state] >= 0 ? state : outputLink[state];
+            while (match != 0) {
+                sink.onMatch(output[match], pos + i + 1);
+                match = outputLink[match];
+            }
+        }
+        return state;
+    }
+
+}
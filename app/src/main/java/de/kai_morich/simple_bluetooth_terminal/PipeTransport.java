@@ -0,0 +1,189 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * in-process loopback, the peer streams act as the remote device.
+ *
+ * Data written to getPeerOutputStream() is read by SerialSocket, data written
+ * by SerialSocket can be read from getPeerInputStream().
+ */
+class PipeTransport implements SerialTransport {
+
+    static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    /**
+     * bounded blocking byte pipe. unlike java.io.PipedInputStream it does not
+     * poll or depend on the liveness of the writing thread
+     */
+    private static final class Pipe {
+        private final byte[] buffer;
+        private int readPos, count;
+        private boolean closed;
+
+        Pipe(int size) {
+            buffer = new byte[size];
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (count == buffer.length && !closed)
+                    waitUninterruptibly();
+                if (closed)
+                    throw new IOException("pipe closed");
+                int writePos = (readPos + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - writePos));
+                System.arraycopy(b, off, buffer, writePos, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        /**
+         * all or nothing, never waits
+         */
+        synchronized boolean offer(byte[] b, int off, int len) {
+            if (closed || len > buffer.length - count)
+                return false;
+            int writePos = (readPos + count) % buffer.length;
+            int n = Math.min(len, buffer.length - writePos);
+            System.arraycopy(b, off, buffer, writePos, n);
+            System.arraycopy(b, off + n, buffer, 0, len - n);
+            count += len;
+            notifyAll();
+            return true;
+        }
+
+        synchronized int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            while (count == 0 && !closed)
+                waitUninterruptibly();
+            if (count == 0)
+                return -1;
+            int n = Math.min(len, Math.min(count, buffer.length - readPos));
+            System.arraycopy(buffer, readPos, b, off, n);
+            readPos = (readPos + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void waitUninterruptibly() {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+            }
+        }
+
+        InputStream inputStream() {
+            return new InputStream() {
+                @Override
+                public int read() {
+                    byte[] b = new byte[1];
+                    return Pipe.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return Pipe.this.read(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    Pipe.this.close();
+                }
+            };
+        }
+
+        OutputStream outputStream() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    Pipe.this.write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    Pipe.this.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    Pipe.this.close();
+                }
+            };
+        }
+    }
+
+    private final Pipe toSocket, fromSocket;
+
+    PipeTransport() {
+        this(DEFAULT_PIPE_SIZE);
+    }
+
+    PipeTransport(int pipeSize) {
+        toSocket = new Pipe(pipeSize);
+        fromSocket = new Pipe(pipeSize);
+    }
+
+    @Override
+    public String getName() {
+        return "pipe";
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return toSocket.inputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return fromSocket.outputStream();
+    }
+
+    @Override
+    public void close() {
+        toSocket.close();
+        fromSocket.close();
+    }
+
+    /**
+     * remote side: data written by SerialSocket
+     */
+    InputStream getPeerInputStream() {
+        return fromSocket.inputStream();
+    }
+
+    /**
+     * remote side: data to be read by SerialSocket. Closing it ends the read loop
+     */
+    OutputStream getPeerOutputStream() {
+        return toSocket.outputStream();
+    }
+
+    /**
+     * remote side: like getPeerOutputStream().write(), but never blocks, for producers
+     * that must not wait for the socket thread, e.g. the main thread
+     * @return false if the pipe is full or closed, nothing was written
+     */
+    boolean offerPeerData(byte[] data) {
+        return toSocket.offer(data, 0, data.length);
+    }
+
+}
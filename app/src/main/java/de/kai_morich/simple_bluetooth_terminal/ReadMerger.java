@@ -0,0 +1,78 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * merge data chunks from the socket thread into few consumer thread calls.
+ *
+ * On new data inform consumer thread once (1).
+ * While not consumed (2), add more data (3).
+ *
+ * Data is passed through a lock-free ring buffer, so the socket thread never
+ * waits for a monitor held by the consumer thread. It only waits if the ring
+ * is full, i.e. the consumer can't keep up.
+ * Kept free of Android dependencies, SerialService uses it with the main looper.
+ */
+final class ReadMerger {
+
+    interface Consumer {
+        /**
+         * consumer owns the slices, but must not keep the deque
+         */
+        void onMergedRead(ArrayDeque<ReceiveBufferPool.Slice> datas);
+    }
+
+    private static final long RING_FULL_WAIT_NANOS = 1_000_000;
+
+    private final SpscByteRing ring;
+    private final ReceiveBufferPool pool;
+    private final Executor consumerExecutor;
+    private final Consumer consumer;
+    private final AtomicBoolean posted = new AtomicBoolean();
+    private final ArrayDeque<ReceiveBufferPool.Slice> datas = new ArrayDeque<>();
+    private final Runnable drain = this::drain;
+
+    /**
+     * @param capacity ring size, power of 2
+     * @param consumerExecutor runs drain on consumer thread, e.g. Handler::post
+     */
+    ReadMerger(int capacity, ReceiveBufferPool pool, Executor consumerExecutor, Consumer consumer) {
+        this.ring = new SpscByteRing(capacity);
+        this.pool = pool;
+        this.consumerExecutor = consumerExecutor;
+        this.consumer = consumer;
+    }
+
+    /**
+     * producer thread. data is released after it has been copied
+     */
+    void write(ReceiveBufferPool.Slice data) {
+        int pos = 0;
+        while (true) {
+            pos += ring.write(data.buffer, pos, data.length - pos); // (3)
+            if (posted.compareAndSet(false, true)) // (1)
+                consumerExecutor.execute(drain);
+            if (pos == data.length)
+                break;
+            LockSupport.parkNanos(RING_FULL_WAIT_NANOS);
+        }
+        data.release();
+    }
+
+    private void drain() {
+        posted.set(false); // (2) data written after this point gets a new post
+        if (ring.isEmpty())
+            return;
+        while (!ring.isEmpty()) {
+            ReceiveBufferPool.Slice slice = pool.acquire();
+            slice.length = ring.read(slice.buffer, 0, slice.buffer.length);
+            datas.add(slice);
+        }
+        consumer.onMergedRead(datas);
+        datas.clear();
+    }
+
+}
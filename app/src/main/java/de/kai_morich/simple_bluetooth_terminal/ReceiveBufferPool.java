@@ -0,0 +1,86 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * recycle receive buffers instead of allocating a new byte[] for each read.
+ *
+ * The socket thread acquires a slice, fills it and passes it down the listener chain.
+ * Whoever consumes the data last calls release() to return the slice to the pool.
+ */
+final class ReceiveBufferPool {
+
+    static final int DEFAULT_SLICE_SIZE = 1024;
+    static final int DEFAULT_MAX_POOLED = 64;
+
+    static final class Slice {
+        final byte[] buffer;
+        int length;
+        private final ReceiveBufferPool pool;
+        private boolean pooled;
+
+        private Slice(ReceiveBufferPool pool, byte[] buffer) {
+            this.pool = pool;
+            this.buffer = buffer;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, length);
+        }
+
+        /**
+         * return slice to pool. slice must not be accessed afterwards
+         */
+        void release() {
+            if(pool != null)
+                pool.release(this);
+        }
+    }
+
+    /**
+     * wrap data not originating from a pool, e.g. from BLE notifications. release() is a no-op
+     */
+    static Slice wrap(byte[] data) {
+        Slice slice = new Slice(null, data);
+        slice.length = data.length;
+        return slice;
+    }
+
+    private final int sliceSize;
+    private final ArrayBlockingQueue<Slice> free;
+
+    ReceiveBufferPool() {
+        this(DEFAULT_SLICE_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    ReceiveBufferPool(int sliceSize, int maxPooled) {
+        this.sliceSize = sliceSize;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    int getSliceSize() {
+        return sliceSize;
+    }
+
+    /**
+     * get empty slice. allocates a new one if all pooled slices are in use
+     */
+    Slice acquire() {
+        Slice slice = free.poll();
+        if(slice == null)
+            slice = new Slice(this, new byte[sliceSize]);
+        slice.pooled = false;
+        slice.length = 0;
+        return slice;
+    }
+
+    private void release(Slice slice) {
+        if(slice.pooled)
+            throw new IllegalStateException("slice released twice");
+        slice.pooled = true;
+        slice.length = 0;
+        free.offer(slice); // if pool is full, slice is left to GC
+    }
+
+}
@@ -0,0 +1,224 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * all received bytes of a session in a memory-mapped SpillJournal, with streaming search.
+ *
+ * A new search scans the existing history on a background thread in blocks, then new chunks
+ * are matched as they are appended, so matches are never searched twice. Match end positions
+ * are kept in a sorted primitive index, so stepping through matches is an array access and
+ * finding the next match from any position a binary search, independent of the history size.
+ *
+ * Thread safe. The listener is called from the appending or the search thread.
+ */
+final class ReceiveHistory implements Closeable {
+
+    interface Listener {
+        /**
+         * @param complete false while the existing history is still scanned
+         */
+        void onSearchProgress(long scanned, long size, int matchCount, boolean complete);
+    }
+
+    static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+    static final int MAX_MATCHES = 1024 * 1024;
+    private static final int SCAN_BLOCK_SIZE = 64 * 1024;
+    private static final int PROGRESS_BLOCKS = 16;
+
+    private final SpillJournal journal;
+    private final long maxSize;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final byte[] scanBuffer = new byte[SCAN_BLOCK_SIZE]; // used by the search thread only
+    private final PatternMatcher.Sink sink = this::addMatch;
+
+    private PatternMatcher matcher;
+    private Listener listener;
+    private int generation;
+    private int state;
+    private long scanned;
+    private long[] matchEnds = new long[256];
+    private int[] matchPatterns = new int[256];
+    private int matchCount;
+    private boolean truncated;
+    private IOException error;
+
+    ReceiveHistory(File file) {
+        this(file, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize data received beyond is not kept and not searched
+     */
+    ReceiveHistory(File file, long maxSize) {
+        this.journal = new SpillJournal(file);
+        this.maxSize = maxSize;
+    }
+
+    synchronized long size() {
+        return journal.size();
+    }
+
+    synchronized boolean isFull() {
+        return journal.size() >= maxSize;
+    }
+
+    synchronized void append(byte[] data, int off, int len) {
+        if (error != null)
+            return;
+        len = (int) Math.min(len, maxSize - journal.size());
+        if (len <= 0)
+            return;
+        long pos;
+        try {
+            pos = journal.append(data, off, len);
+        } catch (IOException e) {
+            error = e;
+            return;
+        }
+        if (matcher != null && scanned == pos) { // search thread has caught up
+            int count = matchCount;
+            state = matcher.feed(state, data, off, len, pos, sink);
+            scanned += len;
+            if (matchCount != count && listener != null)
+                listener.onSearchProgress(scanned, journal.size(), matchCount, true);
+        }
+    }
+
+    /**
+     * replace current search. existing history is scanned in background, new data incrementally
+     * @param matcher null to stop searching
+     */
+    synchronized void search(PatternMatcher matcher, Listener listener) {
+        this.matcher = matcher;
+        this.listener = listener;
+        final int generation = ++this.generation;
+        state = PatternMatcher.INITIAL_STATE;
+        scanned = 0;
+        matchCount = 0;
+        truncated = false;
+        if (matcher != null)
+            executor.submit(() -> scan(generation));
+    }
+
+    synchronized int getMatchCount() {
+        return matchCount;
+    }
+
+    /**
+     * true if more than MAX_MATCHES were found, later matches are not indexed
+     */
+    synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return history position of the first byte of the match
+     */
+    synchronized long getMatchStart(int index) {
+        return matchEnds[index] - matcher.getPatternLength(matchPatterns[index]);
+    }
+
+    synchronized int getMatchLength(int index) {
+        return matcher.getPatternLength(matchPatterns[index]);
+    }
+
+    synchronized int getMatchPattern(int index) {
+        return matchPatterns[index];
+    }
+
+    /**
+     * @return index of the first match ending after pos, or -1
+     */
+    synchronized int nextMatch(long pos) {
+        int i = Arrays.binarySearch(matchEnds, 0, matchCount, pos + 1);
+        if (i < 0)
+            i = -i - 1;
+        else
+            while (i > 0 && matchEnds[i - 1] == pos + 1) // several patterns can end at the same position
+                i--;
+        return i < matchCount ? i : -1;
+    }
+
+    /**
+     * read back history, e.g. the context of a match
+     * @return number of bytes read, 0 at end of history
+     */
+    synchronized int read(long pos, byte[] dst, int off, int len) throws IOException {
+        return journal.read(pos, dst, off, len);
+    }
+
+    synchronized void clear() {
+        try {
+            journal.reset();
+            error = null;
+        } catch (IOException e) {
+            error = e;
+        }
+        search(matcher, listener);
+    }
+
+    @Override
+    public synchronized void close() {
+        generation++;
+        matcher = null;
+        executor.shutdown();
+        journal.close();
+    }
+
+    // called with lock held
+    private void addMatch(int pattern, long end) {
+        if (matchCount == MAX_MATCHES) {
+            truncated = true;
+            return;
+        }
+        if (matchCount == matchEnds.length) {
+            int capacity = Math.min(2 * matchCount, MAX_MATCHES);
+            matchEnds = Arrays.copyOf(matchEnds, capacity);
+            matchPatterns = Arrays.copyOf(matchPatterns, capacity);
+        }
+        matchEnds[matchCount] = end;
+        matchPatterns[matchCount] = pattern;
+        matchCount++;
+    }
+
+    // the lock is released between blocks, so appending never waits for the whole scan
+    private void scan(int generation) {
+        for (int block = 1; ; block++) {
+            Listener listener;
+            long scanned, size;
+            int count;
+            boolean complete;
+            synchronized (this) {
+                if (generation != this.generation)
+                    return;
+                int n;
+                try {
+                    n = journal.read(this.scanned, scanBuffer, 0, scanBuffer.length);
+                } catch (IOException e) {
+                    error = e;
+                    n = 0;
+                }
+                if (n > 0) {
+                    state = matcher.feed(state, scanBuffer, 0, n, this.scanned, sink);
+                    this.scanned += n;
+                }
+                listener = this.listener;
+                scanned = this.scanned;
+                size = journal.size();
+                count = matchCount;
+                complete = n == 0;
+            }
+            if (listener != null && (complete || block % PROGRESS_BLOCKS == 0))
+                listener.onSearchProgress(scanned, size, count, complete);
+            if (complete)
+                return;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.graphics.Color
+import android.view.Choreographer
+import java.nio.CharBuffer
+
+/**
+ * collects received and sent data and shows it in the scrollback once per display frame.
+ *
+ * At most maxPacketsPerFrame packets / maxBytesPerFrame bytes are shown as hex per frame,
+ * further packets are only counted and shown as "N packets, M bytes" summary at the place
+ * of the first dropped packet, so the UI work per frame stays bounded at any notification rate.
+ * Can be called from any thread, the Choreographer is taken from the creating thread.
+ */
+class RenderBatcher(
+    private val scrollback: ScrollbackAdapter,
+    private val maxPacketsPerFrame: Int = DEFAULT_MAX_PACKETS_PER_FRAME,
+    private val maxBytesPerFrame: Int = DEFAULT_MAX_BYTES_PER_FRAME
+) : Choreographer.FrameCallback {
+
+    companion object {
+        const val DEFAULT_MAX_PACKETS_PER_FRAME = 64
+        const val DEFAULT_MAX_BYTES_PER_FRAME = 4096
+        val RECEIVE_COLOR = Color.GREEN
+        val SEND_COLOR = Color.YELLOW
+    }
+
+    private class Entry(val data: ByteArray?, val text: CharSequence?, val color: Int)
+
+    // placeholder for the dropped packets summary, counts are filled in by doFrame
+    private val summary = Entry(null, null, 0)
+
+    private val choreographer = Choreographer.getInstance()
+    private val lock = Any()
+    // swapped on flush, so producers never wait for rendering
+    private var pending = ArrayList<Entry>()
+    private var rendering = ArrayList<Entry>()
+    private var pendingPackets = 0
+    private var pendingBytes = 0
+    private var droppedReceivePackets = 0
+    private var droppedReceiveBytes = 0L
+    private var droppedSendPackets = 0
+    private var droppedSendBytes = 0L
+    private var summaryPending = false
+    private var scheduled = false
+    private var closed = false
+
+    private val encoder = HexCodec.Encoder()
+    private var chars = CharArray(HexCodec.maxEncodedLength(256) + 1)
+
+    /**
+     * data is copied if it will be shown, so the caller can reuse the array
+     */
+    fun received(data: ByteArray) = add(data, 0, data.size, true)
+
+    fun received(data: ByteArray, off: Int, len: Int) = add(data, off, len, true)
+
+    fun sent(data: ByteArray) = add(data, 0, data.size, false)
+
+    /**
+     * status text is never summarized. text should end with newline
+     */
+    fun status(text: CharSequence, color: Int = 0) {
+        synchronized(lock) {
+            if (closed) return
+            pending.add(Entry(null, text, color))
+            schedule()
+        }
+    }
+
+    /**
+     * stop rendering, pending data is discarded
+     */
+    fun close() {
+        synchronized(lock) {
+            closed = true
+            pending.clear()
+            summaryPending = false
+        }
+        choreographer.removeFrameCallback(this)
+    }
+
+    private fun add(data: ByteArray, off: Int, len: Int, received: Boolean) {
+        synchronized(lock) {
+            if (closed) return
+            if (pendingPackets < maxPacketsPerFrame && pendingBytes + len <= maxBytesPerFrame) {
+                pending.add(Entry(data.copyOfRange(off, off + len), null, if (received) RECEIVE_COLOR else SEND_COLOR))
+                pendingPackets++
+                pendingBytes += len
+            } else {
+                if (!summaryPending) {
+                    summaryPending = true
+                    pending.add(summary)
+                }
+                if (received) {
+                    droppedReceivePackets++
+                    droppedReceiveBytes += len
+                } else {
+                    droppedSendPackets++
+                    droppedSendBytes += len
+                }
+            }
+            schedule()
+        }
+    }
+
+    // called with lock held
+    private fun schedule() {
+        if (!scheduled) {
+            scheduled = true
+            choreographer.postFrameCallback(this)
+        }
+    }
+
+    override fun doFrame(frameTimeNanos: Long) {
+        val receivePackets: Int
+        val receiveBytes: Long
+        val sendPackets: Int
+        val sendBytes: Long
+        synchronized(lock) {
+            scheduled = false
+            if (closed) return
+            val entries = pending
+            pending = rendering
+            rendering = entries
+            pendingPackets = 0
+            pendingBytes = 0
+            receivePackets = droppedReceivePackets
+            receiveBytes = droppedReceiveBytes
+            sendPackets = droppedSendPackets
+            sendBytes = droppedSendBytes
+            droppedReceivePackets = 0
+            droppedReceiveBytes = 0
+            droppedSendPackets = 0
+            droppedSendBytes = 0
+            summaryPending = false
+        }
+        for (entry in rendering) {
+            if (entry === summary) {
+                if (receivePackets > 0)
+                    scrollback.append("$receivePackets packets, $receiveBytes bytes received\n", RECEIVE_COLOR, false)
+                if (sendPackets > 0)
+                    scrollback.append("$sendPackets packets, $sendBytes bytes sent\n", SEND_COLOR, false)
+            } else if (entry.data != null)
+                appendHex(entry.data, entry.color)
+            else
+                scrollback.append(entry.text!!, entry.color, false)
+        }
+        rendering.clear()
+        scrollback.notifyDataSetChanged()
+    }
+
+    private fun appendHex(data: ByteArray, color: Int) {
+        val size = HexCodec.maxEncodedLength(data.size) + 1
+        if (chars.size < size)
+            chars = CharArray(maxOf(size, 2 * chars.size))
+        encoder.reset()
+        val len = encoder.encode(data, 0, data.size, chars, 0)
+        chars[len] = '\n'
+        scrollback.append(CharBuffer.wrap(chars, 0, len + 1), color, false)
+    }
+
+}
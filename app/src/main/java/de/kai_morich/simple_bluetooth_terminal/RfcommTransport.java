@@ -0,0 +1,60 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * classic Bluetooth Serial Port Profile
+ */
+@SuppressLint("MissingPermission")
+class RfcommTransport implements SerialTransport {
+
+    private static final UUID BLUETOOTH_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice device;
+    private BluetoothSocket socket;
+
+    RfcommTransport(BluetoothDevice device) {
+        this.device = device;
+    }
+
+    @Override
+    public String getName() {
+        return device.getName() != null ? device.getName() : device.getAddress();
+    }
+
+    @Override
+    public void connect() throws IOException {
+        socket = device.createRfcommSocketToServiceRecord(BLUETOOTH_SPP);
+        socket.connect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if(socket == null)
+            throw new IOException("not connected");
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if(socket == null)
+            throw new IOException("not connected");
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket socket = this.socket;
+        this.socket = null;
+        if(socket != null)
+            socket.close();
+    }
+
+}
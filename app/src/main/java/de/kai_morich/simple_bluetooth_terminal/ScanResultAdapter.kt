@@ -0,0 +1,142 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.content.Context
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.BaseAdapter
+import android.widget.ListView
+import android.widget.TextView
+import com.clj.fastble.data.BleDevice
+import java.util.UUID
+
+/**
+ * shows scan results in a ListView, one row per MAC.
+ *
+ * Scan callbacks only update the ScanResultStore. At most every intervalMillis the
+ * collected changes are applied: added or removed devices need notifyDataSetChanged(),
+ * otherwise only visible rows of changed devices are bound again.
+ */
+class ScanResultAdapter(
+    private val context: Context,
+    private val listView: ListView,
+    private val intervalMillis: Long = DEFAULT_INTERVAL_MILLIS,
+    private val maxAgeMillis: Long = DEFAULT_MAX_AGE_MILLIS
+) : BaseAdapter() {
+
+    companion object {
+        const val DEFAULT_INTERVAL_MILLIS = 250L
+        const val DEFAULT_MAX_AGE_MILLIS = 60_000L
+    }
+
+    private class Row(val view: View, val text1: TextView, val text2: TextView)
+
+    private val store = ScanResultStore()
+    private val statuses = HashMap<String, String>()
+    private val changed = HashSet<String>()
+    private val handler = Handler(Looper.getMainLooper())
+    private var lastFlushMillis = 0L
+    private var flushPending = false
+    private val flush = Runnable { flush() }
+
+    fun update(bleDevice: BleDevice) {
+        val now = SystemClock.elapsedRealtime()
+        if (store.update(bleDevice.mac, bleDevice.name, bleDevice.rssi, bleDevice.scanRecord, now))
+            scheduleFlush()
+    }
+
+    /**
+     * additional text shown for a device, e.g. OTA state. null removes it
+     */
+    fun setStatus(mac: String, status: String?) {
+        if (status == null) statuses.remove(mac) else statuses[mac] = status
+        store.markChanged(mac)
+        scheduleFlush()
+    }
+
+    fun getMac(position: Int): String = store.get(position).mac
+
+    /**
+     * devices advertising the service
+     */
+    fun getMacs(service: UUID): List<String> =
+        (0 until store.size()).map { store.get(it) }.filter { service in it.serviceUuids }.map { it.mac }
+
+    fun clear() {
+        store.clear()
+        statuses.clear()
+        handler.removeCallbacks(flush)
+        flushPending = false
+        flush()
+    }
+
+    override fun getCount(): Int = store.size()
+
+    override fun getItem(position: Int): Any = store.get(position)
+
+    // MAC as id, so ListView keeps its scroll position when devices are removed
+    override fun getItemId(position: Int): Long = macToId(store.get(position).mac)
+
+    override fun hasStableIds(): Boolean = true
+
+    override fun getView(position: Int, convertView: View?, parent: ViewGroup): View {
+        val row = convertView?.tag as Row? ?: newRow(parent)
+        bind(row, store.get(position))
+        return row.view
+    }
+
+    private fun bind(row: Row, entry: ScanResultStore.Entry) {
+        row.text1.text = entry.displayName ?: "Unknown"
+        val status = statuses[entry.mac]
+        row.text2.text = if (status == null) "${entry.mac}  ${entry.rssi} dBm"
+            else "${entry.mac}  ${entry.rssi} dBm\n$status"
+    }
+
+    private fun newRow(parent: ViewGroup): Row {
+        val view = LayoutInflater.from(context).inflate(R.layout.device_list_item, parent, false)
+        val row = Row(view, view.findViewById(R.id.text1), view.findViewById(R.id.text2))
+        view.tag = row
+        return row
+    }
+
+    private fun scheduleFlush() {
+        if (flushPending) return
+        flushPending = true
+        val delay = lastFlushMillis + intervalMillis - SystemClock.elapsedRealtime()
+        handler.postDelayed(flush, delay.coerceAtLeast(0))
+    }
+
+    private fun flush() {
+        flushPending = false
+        lastFlushMillis = SystemClock.elapsedRealtime()
+        if (maxAgeMillis > 0)
+            store.removeOlderThan(lastFlushMillis - maxAgeMillis, statuses.keys)
+        changed.clear()
+        if (store.drainChanges(changed)) {
+            notifyDataSetChanged()
+            return
+        }
+        val first = listView.firstVisiblePosition
+        for (i in 0 until listView.childCount) {
+            val position = first + i - listView.headerViewsCount
+            if (position < 0 || position >= store.size()) continue
+            val entry = store.get(position)
+            if (entry.mac !in changed) continue
+            val row = listView.getChildAt(i).tag as Row? ?: continue
+            bind(row, entry)
+        }
+    }
+
+    private fun macToId(mac: String): Long {
+        var id = 0L
+        for (c in mac) {
+            val digit = Character.digit(c, 16)
+            if (digit >= 0) id = id shl 4 or digit.toLong()
+        }
+        return id
+    }
+
+}
@@ -0,0 +1,288 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * scan results keyed by MAC, in order of discovery.
+ *
+ * Further advertisements of a known device only update RSSI, time and raw record in place.
+ * The record is decoded on first access of an advertisement field, so only for rows that
+ * are shown. Visible changes are collected per MAC until drainChanges(), so the list
+ * rebinds changed rows only, and only has to relayout when devices were added or removed.
+ *
+ * Not thread safe, FastBle reports scan results on the main thread.
+ */
+final class ScanResultStore {
+
+    static final int DEFAULT_RSSI_STEP = 3;
+    static final int NO_TX_POWER = Integer.MIN_VALUE;
+    static final int NO_MANUFACTURER = -1;
+
+    private static final int AD_FLAGS = 0x01;
+    private static final int AD_UUID16_PARTIAL = 0x02;
+    private static final int AD_UUID16 = 0x03;
+    private static final int AD_UUID32_PARTIAL = 0x04;
+    private static final int AD_UUID32 = 0x05;
+    private static final int AD_UUID128_PARTIAL = 0x06;
+    private static final int AD_UUID128 = 0x07;
+    private static final int AD_SHORT_NAME = 0x08;
+    private static final int AD_NAME = 0x09;
+    private static final int AD_TX_POWER = 0x0a;
+    private static final int AD_MANUFACTURER = 0xff;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    static final class Entry {
+        final String mac;
+        String name;
+        int rssi;
+        long firstSeen;
+        long lastSeen;
+        int count;
+        private int index;
+        private int reportedRssi;
+        private byte[] scanRecord;
+        private boolean decoded;
+        private int flags;
+        private String localName;
+        private List<UUID> serviceUuids = Collections.emptyList();
+        private int txPower = NO_TX_POWER;
+        private int manufacturerId = NO_MANUFACTURER;
+        private byte[] manufacturerData;
+
+        private Entry(String mac) {
+            this.mac = mac;
+        }
+
+        int getFlags() { decode(); return flags; }
+        String getLocalName() { decode(); return localName; }
+        List<UUID> getServiceUuids() { decode(); return serviceUuids; }
+        int getTxPower() { decode(); return txPower; }
+        /**
+         * @return company id of the first manufacturer specific data, or NO_MANUFACTURER
+         */
+        int getManufacturerId() { decode(); return manufacturerId; }
+        byte[] getManufacturerData() { decode(); return manufacturerData; }
+
+        /**
+         * name from the scan, else from the advertisement
+         */
+        String getDisplayName() {
+            return name != null ? name : getLocalName();
+        }
+
+        private void setScanRecord(byte[] record) {
+            if (record == scanRecord || Arrays.equals(record, scanRecord))
+                return;
+            scanRecord = record;
+            decoded = false;
+        }
+
+        private void decode() {
+            if (decoded)
+                return;
+            decoded = true;
+            flags = 0;
+            localName = null;
+            serviceUuids = Collections.emptyList();
+            txPower = NO_TX_POWER;
+            manufacturerId = NO_MANUFACTURER;
+            manufacturerData = null;
+            byte[] record = scanRecord;
+            if (record == null)
+                return;
+            int pos = 0;
+            while (pos < record.length) {
+                int len = record[pos] & 0xff;
+                if (len == 0 || pos + 1 + len > record.length)
+                    break; // padding or truncated
+                int type = record[pos + 1] & 0xff;
+                int data = pos + 2;
+                int dataLen = len - 1;
+                switch (type) {
+                    case AD_FLAGS:
+                        if (dataLen > 0) flags = record[data] & 0xff;
+                        break;
+                    case AD_UUID16_PARTIAL:
+                    case AD_UUID16:
+                        addUuids(record, data, dataLen, 2);
+                        break;
+                    case AD_UUID32_PARTIAL:
+                    case AD_UUID32:
+                        addUuids(record, data, dataLen, 4);
+                        break;
+                    case AD_UUID128_PARTIAL:
+                    case AD_UUID128:
+                        addUuids(record, data, dataLen, 16);
+                        break;
+                    case AD_SHORT_NAME:
+                        if (localName == null) localName = new String(record, data, dataLen, StandardCharsets.UTF_8);
+                        break;
+                    case AD_NAME:
+                        localName = new String(record, data, dataLen, StandardCharsets.UTF_8);
+                        break;
+                    case AD_TX_POWER:
+                        if (dataLen > 0) txPower = record[data];
+                        break;
+                    case AD_MANUFACTURER:
+                        if (dataLen >= 2 && manufacturerId == NO_MANUFACTURER) {
+                            manufacturerId = (record[data] & 0xff) | (record[data + 1] & 0xff) << 8;
+                            manufacturerData = Arrays.copyOfRange(record, data + 2, data + dataLen);
+                        }
+                        break;
+                }
+                pos += 1 + len;
+            }
+        }
+
+        private void addUuids(byte[] record, int off, int len, int size) {
+            if (serviceUuids.isEmpty())
+                serviceUuids = new ArrayList<>();
+            for (int i = off; i + size <= off + len; i += size) {
+                // little endian in the advertisement
+                if (size == 16) {
+                    long lsb = 0, msb = 0;
+                    for (int j = 7; j >= 0; j--) lsb = lsb << 8 | (record[i + j] & 0xff);
+                    for (int j = 15; j >= 8; j--) msb = msb << 8 | (record[i + j] & 0xff);
+                    serviceUuids.add(new UUID(msb, lsb));
+                } else {
+                    long value = 0;
+                    for (int j = size - 1; j >= 0; j--) value = value << 8 | (record[i + j] & 0xff);
+                    serviceUuids.add(new UUID(BASE_UUID_MSB | value << 32, BASE_UUID_LSB));
+                }
+            }
+        }
+    }
+
+    private final int rssiStep;
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private final HashMap<String, Entry> byMac = new HashMap<>();
+    private final LinkedHashSet<String> changed = new LinkedHashSet<>();
+    private boolean structuralChange;
+
+    ScanResultStore() {
+        this(DEFAULT_RSSI_STEP);
+    }
+
+    /**
+     * @param rssiStep smaller RSSI changes are stored, but not reported as change
+     */
+    ScanResultStore(int rssiStep) {
+        this.rssiStep = rssiStep;
+    }
+
+    /**
+     * @return true if the device is new or changed visibly
+     */
+    boolean update(String mac, String name, int rssi, byte[] scanRecord, long now) {
+        Entry entry = byMac.get(mac);
+        boolean visible;
+        if (entry == null) {
+            entry = new Entry(mac);
+            entry.index = entries.size();
+            entry.firstSeen = now;
+            entry.reportedRssi = rssi;
+            entries.add(entry);
+            byMac.put(mac, entry);
+            structuralChange = true;
+            visible = true;
+        } else {
+            visible = Math.abs(rssi - entry.reportedRssi) >= rssiStep
+                    || (name != null && !name.equals(entry.name));
+            if (visible)
+                entry.reportedRssi = rssi;
+        }
+        entry.rssi = rssi;
+        if (name != null)
+            entry.name = name;
+        entry.lastSeen = now;
+        entry.count++;
+        entry.setScanRecord(scanRecord);
+        if (visible)
+            markChanged(mac);
+        return visible;
+    }
+
+    /**
+     * report a change shown next to the scan data, e.g. OTA state
+     */
+    void markChanged(String mac) {
+        if (byMac.containsKey(mac))
+            changed.add(mac);
+    }
+
+    /**
+     * @param out receives the MACs changed since the last call
+     * @return true if devices were added or removed, i.e. positions changed
+     */
+    boolean drainChanges(Collection<String> out) {
+        out.addAll(changed);
+        changed.clear();
+        boolean structural = structuralChange;
+        structuralChange = false;
+        return structural;
+    }
+
+    boolean hasChanges() {
+        return structuralChange || !changed.isEmpty();
+    }
+
+    /**
+     * @param keep devices not removed, e.g. while connected they do not advertise
+     * @return number of removed devices
+     */
+    int removeOlderThan(long time, Collection<String> keep) {
+        int removed = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.lastSeen < time && !keep.contains(entry.mac)) {
+                byMac.remove(entry.mac);
+                removed++;
+            } else {
+                entry.index = i - removed;
+                entries.set(i - removed, entry);
+            }
+        }
+        if (removed > 0) {
+            entries.subList(entries.size() - removed, entries.size()).clear();
+            structuralChange = true;
+        }
+        return removed;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    Entry get(int position) {
+        return entries.get(position);
+    }
+
+    Entry get(String mac) {
+        return byMac.get(mac);
+    }
+
+    /**
+     * @return position or -1
+     */
+    int indexOf(String mac) {
+        Entry entry = byMac.get(mac);
+        return entry == null ? -1 : entry.index;
+    }
+
+    void clear() {
+        entries.clear();
+        byMac.clear();
+        changed.clear();
+        structuralChange = true;
+    }
+
+}
@@ -0,0 +1,198 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.bluetooth.BluetoothAdapter
+import android.bluetooth.le.ScanCallback
+import android.bluetooth.le.ScanFilter
+import android.bluetooth.le.ScanResult
+import android.bluetooth.le.ScanSettings
+import android.os.Handler
+import android.os.Looper
+import android.os.ParcelUuid
+import android.util.Log
+import java.util.UUID
+
+/**
+ * filtered, batched and duty cycled BLE scan.
+ *
+ * Service UUIDs go into ScanFilters, so the controller drops other advertisements
+ * without waking the app. Small MAC ranges are expanded into address filters as well.
+ * Name prefixes and larger MAC ranges have no hardware equivalent and are checked on
+ * the results. All given criteria have to match.
+ *
+ * With reportDelayMillis, the controller collects results and delivers them in
+ * onBatchScanResults, if it supports batching. With windowMillis, the scan runs
+ * windowMillis of every intervalMillis. Android blocks apps starting more than 5 scans
+ * in 30 seconds, so intervalMillis is at least MIN_INTERVAL_MILLIS.
+ *
+ * Call from the main thread.
+ */
+class ScanScheduler(
+    private val adapter: BluetoothAdapter?,
+    private val config: Config,
+    private val onResult: (ScanResult) -> Unit
+) {
+
+    class MacRange(first: String, last: String) {
+        val first = parseMac(first)
+        val last = parseMac(last)
+
+        operator fun contains(mac: String): Boolean {
+            val value = parseMac(mac)
+            return value in first..last
+        }
+
+        val size: Long
+            get() = last - first + 1
+    }
+
+    class Config(
+        val serviceUuids: List<UUID> = listOf(BleOtaManager.UUID_SERVICE),
+        val namePrefixes: List<String> = emptyList(),
+        val macRanges: List<MacRange> = emptyList(),
+        val reportDelayMillis: Long = 0,
+        val scanMode: Int = ScanSettings.SCAN_MODE_LOW_LATENCY,
+        /** 0 = scan continuously */
+        val windowMillis: Long = 0,
+        val intervalMillis: Long = MIN_INTERVAL_MILLIS
+    )
+
+    companion object {
+        private const val TAG = "ScanScheduler"
+        const val MIN_INTERVAL_MILLIS = 6000L
+        // controllers have few filter slots, beyond that the stack filters in software anyway
+        private const val MAX_HARDWARE_FILTERS = 16
+
+        fun parseMac(mac: String): Long {
+            var value = 0L
+            for (c in mac) {
+                val digit = Character.digit(c, 16)
+                if (digit >= 0) value = value shl 4 or digit.toLong()
+            }
+            return value
+        }
+
+        private fun formatMac(value: Long): String =
+            (5 downTo 0).joinToString(":") { "%02X".format((value shr (8 * it)) and 0xff) }
+    }
+
+    private val handler = Handler(Looper.getMainLooper())
+    private val intervalMillis = maxOf(config.intervalMillis, MIN_INTERVAL_MILLIS)
+    private val filters: List<ScanFilter>
+    // MAC ranges not covered by the address filters
+    private val softwareMacRanges: Boolean
+    private var running = false
+    private var scanning = false
+
+    private val callback = object : ScanCallback() {
+        override fun onScanResult(callbackType: Int, result: ScanResult?) {
+            if (result != null && accept(result))
+                onResult(result)
+        }
+
+        override fun onBatchScanResults(results: List<ScanResult?>) {
+            for (result in results)
+                if (result != null && accept(result))
+                    onResult(result)
+        }
+
+        override fun onScanFailed(errorCode: Int) {
+            Log.e(TAG, "Scan failed with error code: $errorCode")
+            scanning = false
+        }
+    }
+
+    private val startWindow = Runnable { startWindow() }
+    private val stopWindow = Runnable { stopWindow() }
+
+    init {
+        val addresses = ArrayList<String>()
+        val expandable = config.macRanges.sumOf { it.size } <= MAX_HARDWARE_FILTERS
+        if (expandable)
+            for (range in config.macRanges)
+                for (value in range.first..range.last)
+                    addresses.add(formatMac(value))
+        softwareMacRanges = config.macRanges.isNotEmpty() && !expandable
+        val uuids: List<UUID?> = config.serviceUuids.ifEmpty { listOf(null) }
+        val macs: List<String?> = if (addresses.isEmpty()) listOf(null) else addresses
+        val list = ArrayList<ScanFilter>()
+        for (uuid in uuids) {
+            for (mac in macs) {
+                if (uuid == null && mac == null) continue
+                val builder = ScanFilter.Builder()
+                uuid?.let { builder.setServiceUuid(ParcelUuid(it)) }
+                mac?.let { builder.setDeviceAddress(it) }
+                list.add(builder.build())
+            }
+        }
+        filters = list
+    }
+
+    val isRunning: Boolean
+        get() = running
+
+    fun start() {
+        if (running) return
+        running = true
+        startWindow()
+    }
+
+    fun stop() {
+        if (!running) return
+        running = false
+        handler.removeCallbacks(startWindow)
+        handler.removeCallbacks(stopWindow)
+        stopWindow()
+    }
+
+    private fun startWindow() {
+        val scanner = adapter?.bluetoothLeScanner
+        if (!running || scanner == null) return
+        val settings = ScanSettings.Builder()
+            .setScanMode(config.scanMode)
+        if (config.reportDelayMillis > 0 && adapter?.isOffloadedScanBatchingSupported == true)
+            settings.setReportDelay(config.reportDelayMillis)
+        try {
+            scanner.startScan(filters, settings.build(), callback)
+            scanning = true
+            Log.d(TAG, "Started BLE scan with ${filters.size} filters")
+        } catch (e: SecurityException) {
+            Log.e(TAG, "Scan not permitted", e)
+            running = false
+            return
+        }
+        if (config.windowMillis in 1 until intervalMillis) {
+            handler.postDelayed(stopWindow, config.windowMillis)
+            handler.postDelayed(startWindow, intervalMillis)
+        }
+    }
+
+    private fun stopWindow() {
+        if (!scanning) return
+        scanning = false
+        val scanner = adapter?.bluetoothLeScanner ?: return
+        try {
+            // deliver results batched so far, they are dropped by stopScan
+            if (config.reportDelayMillis > 0)
+                scanner.flushPendingScanResults(callback)
+            scanner.stopScan(callback)
+            Log.d(TAG, "Stopped BLE scan")
+        } catch (e: SecurityException) {
+            Log.e(TAG, "Scan not permitted", e)
+        }
+    }
+
+    private fun accept(result: ScanResult): Boolean {
+        if (config.namePrefixes.isNotEmpty()) {
+            val name = result.scanRecord?.deviceName ?: return false
+            if (config.namePrefixes.none { name.startsWith(it) })
+                return false
+        }
+        if (softwareMacRanges) {
+            val mac = result.device?.address ?: return false
+            if (config.macRanges.none { mac in it })
+                return false
+        }
+        return true
+    }
+
+}
@@ -0,0 +1,90 @@
+package de.kai_morich.simple_bluetooth_terminal
+
+import android.content.Context
+import android.text.Spannable
+import android.text.SpannableStringBuilder
+import android.text.style.ForegroundColorSpan
+import android.view.LayoutInflater
+import android.view.View
+import android.view.ViewGroup
+import android.widget.BaseAdapter
+import android.widget.TextView
+import java.nio.CharBuffer
+
+/**
+ * shows a ScrollbackBuffer in a ListView.
+ *
+ * Only visible rows exist as views, they are recycled and restyled when scrolled in,
+ * so appending costs the same with 10 or 10000 lines in the buffer.
+ */
+class ScrollbackAdapter(
+    private val context: Context,
+    maxLines: Int = ScrollbackBuffer.DEFAULT_MAX_LINES,
+    maxChars: Int = ScrollbackBuffer.DEFAULT_MAX_CHARS,
+    maxLineLength: Int = ScrollbackBuffer.DEFAULT_MAX_LINE_LENGTH
+) : BaseAdapter() {
+
+    private val buffer = ScrollbackBuffer(maxLines, maxChars, maxLineLength)
+
+    private class Row(val text: TextView) {
+        val spn = SpannableStringBuilder()
+        val caret = CaretRenderer(true)
+        var chars = CharArray(256)
+        var colorSpan: ForegroundColorSpan? = null
+    }
+
+    /**
+     * @param notify false when appending in a batch, call notifyDataSetChanged() afterwards
+     */
+    fun append(text: CharSequence, color: Int = 0, notify: Boolean = true) {
+        buffer.append(text, color)
+        if (notify)
+            notifyDataSetChanged()
+    }
+
+    fun clear() {
+        buffer.clear()
+        notifyDataSetChanged()
+    }
+
+    override fun getCount(): Int = buffer.lineCount
+
+    override fun getItem(position: Int): Any = buffer.getLine(position)
+
+    // line numbers survive dropping old lines, so ListView keeps its position
+    override fun getItemId(position: Int): Long = buffer.firstLineNumber + position
+
+    override fun hasStableIds(): Boolean = true
+
+    override fun getView(position: Int, convertView: View?, parent: ViewGroup): View {
+        val row = convertView?.tag as Row? ?: newRow(parent)
+        val length = buffer.getLineLength(position)
+        if (row.chars.size < length)
+            row.chars = CharArray(maxOf(length, 2 * row.chars.size))
+        buffer.getLine(position, row.chars)
+        row.caret.clear(row.spn)
+        row.caret.append(row.spn, CharBuffer.wrap(row.chars, 0, length))
+        val color = buffer.getLineColor(position)
+        if (color != 0) {
+            // span objects are immutable, keep the row's span while color is unchanged
+            var colorSpan = row.colorSpan
+            if (colorSpan == null || colorSpan.foregroundColor != color) {
+                colorSpan = ForegroundColorSpan(color)
+                row.colorSpan = colorSpan
+            }
+            row.spn.setSpan(colorSpan, 0, row.spn.length, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE)
+        } else {
+            row.colorSpan?.let { row.spn.removeSpan(it) }
+        }
+        row.text.text = row.spn
+        return row.text
+    }
+
+    private fun newRow(parent: ViewGroup): Row {
+        val text = LayoutInflater.from(context).inflate(R.layout.scrollback_line, parent, false) as TextView
+        val row = Row(text)
+        text.tag = row
+        return row
+    }
+
+}
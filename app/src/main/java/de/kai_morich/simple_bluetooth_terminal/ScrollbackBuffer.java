@@ -0,0 +1,147 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * capped terminal scrollback, stored as lines in a char ring buffer.
+ *
+ * Oldest lines are dropped when maxLines or maxChars is exceeded, so memory and
+ * append cost stay constant however long the session runs. Lines longer than
+ * maxLineLength are wrapped. Each line has one color, 0 = default text color.
+ * Not thread safe, use from main thread.
+ */
+final class ScrollbackBuffer {
+
+    static final int DEFAULT_MAX_LINES = 10000;
+    static final int DEFAULT_MAX_CHARS = 1024 * 1024;
+    static final int DEFAULT_MAX_LINE_LENGTH = 4096;
+
+    private final char[] chars;
+    private final int maxLineLength;
+    private long charHead, charTail; // absolute char positions, ring index = position % chars.length
+
+    private final long[] lineStart;
+    private final int[] lineLength;
+    private final int[] lineColor;
+    private long firstLine; // absolute number of oldest line
+    private int lineCount;
+    private boolean lineOpen; // last line not terminated by newline yet
+
+    ScrollbackBuffer() {
+        this(DEFAULT_MAX_LINES, DEFAULT_MAX_CHARS, DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    ScrollbackBuffer(int maxLines, int maxChars, int maxLineLength) {
+        if(maxLineLength > maxChars)
+            throw new IllegalArgumentException("maxLineLength > maxChars");
+        chars = new char[maxChars];
+        this.maxLineLength = maxLineLength;
+        lineStart = new long[maxLines];
+        lineLength = new int[maxLines];
+        lineColor = new int[maxLines];
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * absolute number of line at index 0, increases when lines are dropped. usable as stable id
+     */
+    long getFirstLineNumber() {
+        return firstLine;
+    }
+
+    int getCharCount() {
+        return (int) (charTail - charHead);
+    }
+
+    int getLineLength(int index) {
+        return lineLength[slot(index)];
+    }
+
+    int getLineColor(int index) {
+        return lineColor[slot(index)];
+    }
+
+    /**
+     * @param dst needs getLineLength(index) space
+     * @return line length
+     */
+    int getLine(int index, char[] dst) {
+        int slot = slot(index);
+        int len = lineLength[slot];
+        int pos = (int) (lineStart[slot] % chars.length);
+        int first = Math.min(len, chars.length - pos);
+        System.arraycopy(chars, pos, dst, 0, first);
+        if(first < len)
+            System.arraycopy(chars, 0, dst, first, len - first);
+        return len;
+    }
+
+    String getLine(int index) {
+        char[] dst = new char[getLineLength(index)];
+        return new String(dst, 0, getLine(index, dst));
+    }
+
+    /**
+     * append text, '\n' terminates the current line. color applies to newly started lines
+     */
+    void append(CharSequence s, int color) {
+        int len = s.length();
+        for(int i=0; i<len; i++) {
+            char c = s.charAt(i);
+            if(c == '\n') {
+                if(!lineOpen)
+                    startLine(color);
+                lineOpen = false;
+                continue;
+            }
+            if(!lineOpen || lineLength[slot(lineCount - 1)] == maxLineLength) {
+                startLine(color);
+                lineOpen = true;
+            }
+            while(charTail - charHead == chars.length)
+                dropFirstLine(); // loops over empty lines
+            chars[(int) (charTail % chars.length)] = c;
+            charTail++;
+            lineLength[slot(lineCount - 1)]++;
+        }
+    }
+
+    void clear() {
+        firstLine += lineCount;
+        lineCount = 0;
+        charHead = charTail;
+        lineOpen = false;
+    }
+
+    private void startLine(int color) {
+        if(lineCount == lineStart.length)
+            dropFirstLine();
+        int slot = (int) ((firstLine + lineCount) % lineStart.length);
+        lineStart[slot] = charTail;
+        lineLength[slot] = 0;
+        lineColor[slot] = color;
+        lineCount++;
+    }
+
+    private void dropFirstLine() {
+        int slot = slot(0);
+        if(lineCount == 1) {
+            // single line fills whole buffer, drop its first chars instead
+            charHead++;
+            lineStart[slot]++;
+            lineLength[slot]--;
+            return;
+        }
+        charHead = lineStart[slot] + lineLength[slot];
+        firstLine++;
+        lineCount--;
+    }
+
+    private int slot(int index) {
+        if(index < 0 || index >= lineCount)
+            throw new IndexOutOfBoundsException("line " + index + " of " + lineCount);
+        return (int) ((firstLine + index) % lineStart.length);
+    }
+
+}
@@ -1,11 +1,15 @@
-package de.kai_morich.simple_bluetooth_terminal;
-
-import java.util.ArrayDeque;
-
-interface SerialListener {
-    void onSerialConnect      ();
-    void onSerialConnectError (Exception e);
-    void onSerialRead         (byte[] data);                // socket -> service
-    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread
-    void onSerialIoError      (Exception e);
-}
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.ArrayDeque;
+
+/**
+ * pooled slices have to be released by the final consumer, see ReceiveBufferPool
+ */
+interface SerialListener {
+    void onSerialConnect      ();
+    void onSerialConnectError (Exception e);
+    void onSerialRead         (byte[] data);                                // unpooled source -> service
+    void onSerialRead         (ReceiveBufferPool.Slice slice);              // socket -> service
+    void onSerialRead         (ArrayDeque<ReceiveBufferPool.Slice> slices); // service -> UI thread
+    void onSerialIoError      (Exception e);
+}
@@ -1,292 +1,574 @@
-package de.kai_morich.simple_bluetooth_terminal;
-
-import android.app.Notification;
-import android.app.NotificationChannel;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
-import android.app.Service;
-import android.content.Context;
-import android.content.Intent;
-import android.os.Binder;
-import android.os.Build;
-import android.os.Handler;
-import android.os.IBinder;
-import android.os.Looper;
-
-import androidx.annotation.Nullable;
-import androidx.annotation.RequiresApi;
-import androidx.core.app.NotificationCompat;
-
-import java.io.IOException;
-import java.util.ArrayDeque;
-
-/**
- * create notification and queue serial data while activity is not in the foreground
- * use listener chain: SerialSocket -> SerialService -> UI fragment
- */
-public class SerialService extends Service implements SerialListener {
-
-    class SerialBinder extends Binder {
-        SerialService getService() { return SerialService.this; }
-    }
-
-    private enum QueueType {Connect, ConnectError, Read, IoError}
-
-    private static class QueueItem {
-        QueueType type;
-        ArrayDeque<byte[]> datas;
-        Exception e;
-
-        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
-        QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
-        QueueItem(QueueType type, ArrayDeque<byte[]> datas) { this.type=type; this.datas=datas; }
-
-        void init() { datas = new ArrayDeque<>(); }
-        void add(byte[] data) { datas.add(data); }
-    }
-
-    private final Handler mainLooper;
-    private final IBinder binder;
-    private final ArrayDeque<QueueItem> queue1, queue2;
-    private final QueueItem lastRead;
-
-    private SerialSocket socket;
-    private SerialListener listener;
-    private boolean connected;
-
-    /**
-     * Lifecylce
-     */
-    public SerialService() {
-        mainLooper = new Handler(Looper.getMainLooper());
-        binder = new SerialBinder();
-        queue1 = new ArrayDeque<>();
-        queue2 = new ArrayDeque<>();
-        lastRead = new QueueItem(QueueType.Read);
-    }
-
-    @Override
-    public void onDestroy() {
-        cancelNotification();
-        disconnect();
-        super.onDestroy();
-    }
-
-    @Nullable
-    @Override
-    public IBinder onBind(Intent intent) {
-        return binder;
-    }
-
-    /**
-     * Api
-     */
-    public void connect(SerialSocket socket) throws IOException {
-        socket.connect(this);
-        this.socket = socket;
-        connected = true;
-    }
-
-    public void disconnect() {
-        connected = false; // ignore data,errors while disconnecting
-        cancelNotification();
-        if(socket != null) {
-            socket.disconnect();
-            socket = null;
-        }
-    }
-
-    public void write(byte[] data) throws IOException {
-        if(!connected)
-            throw new IOException("not connected");
-        socket.write(data);
-    }
-
-    public void attach(SerialListener listener) {
-        if(Looper.getMainLooper().getThread() != Thread.currentThread())
-            throw new IllegalArgumentException("not in main thread");
-        initNotification();
-        cancelNotification();
-        // use synchronized() to prevent new items in queue2
-        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
-        synchronized (this) {
-            this.listener = listener;
-        }
-        for(QueueItem item : queue1) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
-            }
-        }
-        for(QueueItem item : queue2) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
-            }
-        }
-        queue1.clear();
-        queue2.clear();
-    }
-
-    public void detach() {
-        if(connected)
-            createNotification();
-        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
-        // items occurring later, will be moved directly to queue2
-        // detach() and mainLooper.post run in the main thread, so all items are caught
-        listener = null;
-    }
-
-    private void initNotification() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            NotificationChannel nc = new NotificationChannel(Constants.NOTIFICATION_CHANNEL, "Background service", NotificationManager.IMPORTANCE_LOW);
-            nc.setShowBadge(false);
-            NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-            nm.createNotificationChannel(nc);
-        }
-    }
-
-    @RequiresApi(Build.VERSION_CODES.O)
-    public boolean areNotificationsEnabled() {
-        NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        NotificationChannel nc = nm.getNotificationChannel(Constants.NOTIFICATION_CHANNEL);
-        return nm.areNotificationsEnabled() && nc != null && nc.getImportance() > NotificationManager.IMPORTANCE_NONE;
-    }
-
-    private void createNotification() {
-        Intent disconnectIntent = new Intent()
-                .setPackage(getPackageName())
-                .setAction(Constants.INTENT_ACTION_DISCONNECT);
-        Intent restartIntent = new Intent()
-                .setClassName(this, Constants.INTENT_CLASS_MAIN_ACTIVITY)
-                .setAction(Intent.ACTION_MAIN)
-                .addCategory(Intent.CATEGORY_LAUNCHER);
-        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
-        PendingIntent disconnectPendingIntent = PendingIntent.getBroadcast(this, 1, disconnectIntent, flags);
-        PendingIntent restartPendingIntent = PendingIntent.getActivity(this, 1, restartIntent,  flags);
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Constants.NOTIFICATION_CHANNEL)
-                .setSmallIcon(R.drawable.ic_notification)
-                .setColor(getResources().getColor(R.color.colorPrimary))
-                .setContentTitle(getResources().getString(R.string.app_name))
-                .setContentText(socket != null ? "Connected to "+socket.getName() : "Background Service")
-                .setContentIntent(restartPendingIntent)
-                .setOngoing(true)
-                .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
-        // @drawable/ic_notification created with Android Studio -> New -> Image Asset using @color/colorPrimaryDark as background color
-        // Android < API 21 does not support vectorDrawables in notifications, so both drawables used here, are created as .png instead of .xml
-        Notification notification = builder.build();
-        startForeground(Constants.NOTIFY_MANAGER_START_FOREGROUND_SERVICE, notification);
-    }
-
-    private void cancelNotification() {
-        stopForeground(true);
-    }
-
-    /**
-     * SerialListener
-     */
-    public void onSerialConnect() {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnect();
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Connect));
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.Connect));
-                }
-            }
-        }
-    }
-
-    public void onSerialConnectError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnectError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.ConnectError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.ConnectError, e));
-                    disconnect();
-                }
-            }
-        }
-    }
-
-    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
-
-    /**
-     * reduce number of UI updates by merging data chunks.
-     * Data can arrive at hundred chunks per second, but the UI can only
-     * perform a dozen updates if receiveText already contains much text.
-     *
-     * On new data inform UI thread once (1).
-     * While not consumed (2), add more data (3).
-     */
-    public void onSerialRead(byte[] data) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    boolean first;
-                    synchronized (lastRead) {
-                        first = lastRead.datas.isEmpty(); // (1)
-                        lastRead.add(data); // (3)
-                    }
-                    if(first) {
-                        mainLooper.post(() -> {
-                            ArrayDeque<byte[]> datas;
-                            synchronized (lastRead) {
-                                datas = lastRead.datas;
-                                lastRead.init(); // (2)
-                            }
-                            if (listener != null) {
-                                listener.onSerialRead(datas);
-                            } else {
-                                queue1.add(new QueueItem(QueueType.Read, datas));
-                            }
-                        });
-                    }
-                } else {
-                    if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read)
-                        queue2.add(new QueueItem(QueueType.Read));
-                    queue2.getLast().add(data);
-                }
-            }
-        }
-    }
-
-    public void onSerialIoError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialIoError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.IoError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.IoError, e));
-                    disconnect();
-                }
-            }
-        }
-    }
-
-}
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+import androidx.core.app.NotificationCompat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+
+/**
+ * create notification and queue serial data while activity is not in the foreground
+ * use listener chain: SerialSocket -> SerialService -> UI fragment
+ */
+public class SerialService extends Service implements SerialListener {
+
+    class SerialBinder extends Binder {
+        SerialService getService() { return SerialService.this; }
+    }
+
+    private enum QueueType {Connect, ConnectError, Read, IoError}
+
+    private static class QueueItem {
+        QueueType type;
+        ArrayDeque<ReceiveBufferPool.Slice> datas;
+        long spillPos = -1, spillLength; // Read item stored in SpillJournal instead of datas
+        boolean frame; // spilled item is one frame, read back as one slice
+        Exception e;
+
+        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
+        QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
+        QueueItem(QueueType type, ArrayDeque<ReceiveBufferPool.Slice> datas) { this.type=type; this.datas=datas; }
+
+        void init() { datas = new ArrayDeque<>(); }
+        void add(ReceiveBufferPool.Slice data) { datas.add(data); }
+    }
+
+    static final int READ_RING_CAPACITY = 64 * 1024;
+    static final int DEFAULT_DETACHED_BACKLOG_LIMIT = 1024 * 1024;
+    private static final int BACKLOG_BYTES_PER_POST = 64 * 1024;
+    private static final String SPILL_JOURNAL_FILE = "detached_backlog.journal";
+
+    private final Handler mainLooper;
+    private final IBinder binder;
+    private final ArrayDeque<QueueItem> queue1, queue2;
+    private final ReceiveBufferPool readPool;
+    private final ReadMerger readMerger;
+    private final FrameMerger frameMerger;
+    private final Framer.Sink frameSink = this::onFrame;
+
+    private SpillJournal spillJournal;
+    private int detachedBacklogLimit = DEFAULT_DETACHED_BACKLOG_LIMIT;
+    private int queue2Bytes;
+    private SerialListener attachingListener; // main thread only
+    private final Runnable drainBacklog = this::drainBacklog;
+
+    private SerialSocket socket;
+    private SessionReplay replay;
+    private SessionCapture capture;
+    private volatile Framer framer;
+    private int framing = Framer.NONE;
+    private volatile SerialListener listener;
+    private volatile boolean connected;
+
+    /**
+     * Lifecylce
+     */
+    public SerialService() {
+        mainLooper = new Handler(Looper.getMainLooper());
+        binder = new SerialBinder();
+        queue1 = new ArrayDeque<>();
+        queue2 = new ArrayDeque<>();
+        readPool = new ReceiveBufferPool();
+        readMerger = new ReadMerger(READ_RING_CAPACITY, readPool, mainLooper::post, this::onMergedRead);
+        frameMerger = new FrameMerger(READ_RING_CAPACITY, mainLooper::post, this::onMergedRead);
+    }
+
+    @Override
+    public void onDestroy() {
+        cancelNotification();
+        disconnect();
+        stopCapture();
+        synchronized (this) {
+            if(spillJournal != null)
+                spillJournal.close();
+        }
+        super.onDestroy();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Api
+     */
+    public void connect(SerialSocket socket) throws IOException {
+        resetFramer();
+        socket.setCapture(capture);
+        socket.connect(this);
+        this.socket = socket;
+        connected = true;
+    }
+
+    public void disconnect() {
+        connected = false; // ignore data,errors while disconnecting
+        cancelNotification();
+        if(socket != null) {
+            socket.disconnect();
+            socket = null;
+        }
+        if(replay != null) {
+            replay.stop();
+            replay = null;
+        }
+    }
+
+    /**
+     * replay a SessionCapture instead of a connection, received data is delivered like read data
+     * @param speed SessionReplay.ORIGINAL_SPEED, scaled or SessionReplay.MAX_SPEED
+     */
+    public void replay(InputStream in, double speed) {
+        SerialSocket previous = socket;
+        disconnect();
+        resetFramer();
+        replay = new SessionReplay(in, speed);
+        connected = true;
+        // the old read loop might still be in onSerialRead, ReadMerger allows one producer only
+        replay.start(this, previous);
+    }
+
+    /**
+     * record all data of the current and following connections, see SessionCapture
+     */
+    public void startCapture(File file) throws IOException {
+        stopCapture();
+        capture = new SessionCapture(file);
+        if(socket != null)
+            socket.setCapture(capture);
+    }
+
+    public void stopCapture() {
+        if(socket != null)
+            socket.setCapture(null);
+        if(capture != null) {
+            capture.close();
+            capture = null;
+        }
+    }
+
+    public boolean isCapturing() {
+        return capture != null;
+    }
+
+    /**
+     * deliver received data as frames instead of raw chunks, one slice per frame, see Framer.
+     * Frames are queued while detached like raw data, but never merged with each other.
+     * @param mode Framer.NONE, Framer.LINE_CRLF, ...
+     */
+    public void setFraming(int mode) {
+        framer = Framer.create(mode, frameSink);
+        framing = mode;
+    }
+
+    public int getFraming() {
+        return framing;
+    }
+
+    private void resetFramer() {
+        Framer framer = this.framer;
+        if(framer != null)
+            framer.reset();
+    }
+
+    /**
+     * record data sent or received outside of the socket, e.g. OTA writes
+     * @param direction SessionCapture.DIRECTION_IN or DIRECTION_OUT
+     */
+    public void capture(int direction, byte[] data) {
+        SessionCapture capture = this.capture;
+        if(capture != null)
+            capture.record(direction, data);
+    }
+
+    /**
+     * queue data for the writer thread, never blocks
+     * @return false if write queue is full, retry after a previous write completed
+     */
+    public boolean write(byte[] data) throws IOException {
+        return write(data, null);
+    }
+
+    /**
+     * @param callback called in main thread after data has been written or failed
+     */
+    public boolean write(byte[] data, @Nullable SerialWriter.Callback callback) throws IOException {
+        if(!connected)
+            throw new IOException("not connected");
+        if(socket == null)
+            throw new IOException("replay is read only");
+        if(callback == null)
+            return socket.write(data, null);
+        return socket.write(data, new SerialWriter.Callback() {
+            @Override
+            public void onWriteComplete() {
+                mainLooper.post(callback::onWriteComplete);
+            }
+
+            @Override
+            public void onWriteError(IOException e) {
+                mainLooper.post(() -> callback.onWriteError(e));
+            }
+        });
+    }
+
+    /**
+     * max. bytes of read data kept in memory while detached.
+     * more data is spilled to a journal file in the cache dir and read back in attach()
+     */
+    public synchronized void setDetachedBacklogLimit(int bytes) {
+        detachedBacklogLimit = bytes;
+    }
+
+    public void attach(SerialListener listener) {
+        if(Looper.getMainLooper().getThread() != Thread.currentThread())
+            throw new IllegalArgumentException("not in main thread");
+        initNotification();
+        cancelNotification();
+        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
+        for(QueueItem item : queue1) {
+            switch(item.type) {
+                case Connect:       listener.onSerialConnect      (); break;
+                case ConnectError:  listener.onSerialConnectError (item.e); break;
+                case Read:          listener.onSerialRead         (item.datas); break;
+                case IoError:       listener.onSerialIoError      (item.e); break;
+            }
+        }
+        queue1.clear();
+        // queue2 can hold hundreds of MB spilled data, so it is delivered in batches, one per main loop post.
+        // this.listener is set after the last batch, until then new items are still added to queue2
+        attachingListener = listener;
+        mainLooper.removeCallbacks(drainBacklog);
+        drainBacklog.run();
+    }
+
+    /**
+     * deliver up to BACKLOG_BYTES_PER_POST of queue2 to the attaching listener, then post itself again.
+     * items are taken under the monitor, but delivered outside, so the socket thread is not blocked by the UI
+     */
+    private void drainBacklog() {
+        SerialListener listener = attachingListener;
+        if(listener == null) // detached meanwhile
+            return;
+        ArrayDeque<QueueItem> batch = new ArrayDeque<>();
+        boolean done = false;
+        synchronized (this) {
+            int budget = BACKLOG_BYTES_PER_POST;
+            while(budget > 0) {
+                QueueItem item = queue2.peekFirst();
+                if(item == null) {
+                    done = true;
+                    this.listener = listener;
+                    attachingListener = null;
+                    queue2Bytes = 0;
+                    if(spillJournal != null) {
+                        try {
+                            spillJournal.reset();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                    break;
+                }
+                if(item.type == QueueType.Read && item.spillPos >= 0) {
+                    QueueItem read = readSpilled(item, budget);
+                    if(item.spillLength == 0)
+                        queue2.removeFirst();
+                    for(ReceiveBufferPool.Slice slice : read.datas)
+                        budget -= slice.length;
+                    batch.add(read);
+                    if(read.e != null) {
+                        batch.add(new QueueItem(QueueType.IoError, read.e));
+                        read.e = null;
+                    }
+                } else {
+                    queue2.removeFirst();
+                    if(item.type == QueueType.Read) {
+                        for(ReceiveBufferPool.Slice slice : item.datas) {
+                            budget -= slice.length;
+                            queue2Bytes -= slice.length;
+                        }
+                    }
+                    batch.add(item);
+                }
+            }
+        }
+        for(QueueItem item : batch) {
+            switch(item.type) {
+                case Connect:       listener.onSerialConnect      (); break;
+                case ConnectError:  listener.onSerialConnectError (item.e); break;
+                case Read:          if(!item.datas.isEmpty()) listener.onSerialRead(item.datas); break;
+                case IoError:       listener.onSerialIoError      (item.e); break;
+            }
+        }
+        if(!done && attachingListener == listener)
+            mainLooper.post(drainBacklog);
+    }
+
+    /**
+     * read up to budget bytes of a spilled item back into slices and advance the item.
+     * a spilled frame is read as a whole into one slice.
+     * called with monitor held, as the socket thread appends to the journal
+     * @return Read item, with e set if the journal could not be read
+     */
+    private QueueItem readSpilled(QueueItem item, int budget) {
+        QueueItem read = new QueueItem(QueueType.Read);
+        try {
+            while (item.spillLength > 0 && budget > 0) {
+                ReceiveBufferPool.Slice slice = item.frame ? frameSlice((int) item.spillLength) : readPool.acquire();
+                slice.length = spillJournal.read(item.spillPos, slice.buffer, 0, (int) Math.min(slice.buffer.length, item.spillLength));
+                if (slice.length == 0) {
+                    slice.release();
+                    item.spillLength = 0; // journal shorter than expected
+                    break;
+                }
+                item.spillPos += slice.length;
+                item.spillLength -= slice.length;
+                budget -= slice.length;
+                read.add(slice);
+            }
+        } catch (IOException e) {
+            item.spillLength = 0;
+            read.e = e;
+        }
+        return read;
+    }
+
+    public void detach() {
+        if(connected)
+            createNotification();
+        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
+        // items occurring later, will be moved directly to queue2
+        // detach() and mainLooper.post run in the main thread, so all items are caught
+        listener = null;
+        attachingListener = null; // stops a backlog drain, the rest stays in queue2
+    }
+
+    private void initNotification() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel nc = new NotificationChannel(Constants.NOTIFICATION_CHANNEL, "Background service", NotificationManager.IMPORTANCE_LOW);
+            nc.setShowBadge(false);
+            NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            nm.createNotificationChannel(nc);
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    public boolean areNotificationsEnabled() {
+        NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        NotificationChannel nc = nm.getNotificationChannel(Constants.NOTIFICATION_CHANNEL);
+        return nm.areNotificationsEnabled() && nc != null && nc.getImportance() > NotificationManager.IMPORTANCE_NONE;
+    }
+
+    private void createNotification() {
+        Intent disconnectIntent = new Intent()
+                .setPackage(getPackageName())
+                .setAction(Constants.INTENT_ACTION_DISCONNECT);
+        Intent restartIntent = new Intent()
+                .setClassName(this, Constants.INTENT_CLASS_MAIN_ACTIVITY)
+                .setAction(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER);
+        int flags = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0;
+        PendingIntent disconnectPendingIntent = PendingIntent.getBroadcast(this, 1, disconnectIntent, flags);
+        PendingIntent restartPendingIntent = PendingIntent.getActivity(this, 1, restartIntent,  flags);
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, Constants.NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setColor(getResources().getColor(R.color.colorPrimary))
+                .setContentTitle(getResources().getString(R.string.app_name))
+                .setContentText(socket != null ? "Connected to "+socket.getName() : "Background Service")
+                .setContentIntent(restartPendingIntent)
+                .setOngoing(true)
+                .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
+        // @drawable/ic_notification created with Android Studio -> New -> Image Asset using @color/colorPrimaryDark as background color
+        // Android < API 21 does not support vectorDrawables in notifications, so both drawables used here, are created as .png instead of .xml
+        Notification notification = builder.build();
+        startForeground(Constants.NOTIFY_MANAGER_START_FOREGROUND_SERVICE, notification);
+    }
+
+    private void cancelNotification() {
+        stopForeground(true);
+    }
+
+    /**
+     * SerialListener
+     */
+    public void onSerialConnect() {
+        if(connected) {
+            synchronized (this) {
+                if (listener != null) {
+                    mainLooper.post(() -> {
+                        if (listener != null) {
+                            listener.onSerialConnect();
+                        } else {
+                            queue1.add(new QueueItem(QueueType.Connect));
+                        }
+                    });
+                } else {
+                    queue2.add(new QueueItem(QueueType.Connect));
+                }
+            }
+        }
+    }
+
+    public void onSerialConnectError(Exception e) {
+        if(connected) {
+            synchronized (this) {
+                if (listener != null) {
+                    mainLooper.post(() -> {
+                        if (listener != null) {
+                            listener.onSerialConnectError(e);
+                        } else {
+                            queue1.add(new QueueItem(QueueType.ConnectError, e));
+                            disconnect();
+                        }
+                    });
+                } else {
+                    queue2.add(new QueueItem(QueueType.ConnectError, e));
+                    disconnect();
+                }
+            }
+        }
+    }
+
+    public void onSerialRead(ArrayDeque<ReceiveBufferPool.Slice> datas) { throw new UnsupportedOperationException(); }
+
+    public void onSerialRead(byte[] data) {
+        onSerialRead(ReceiveBufferPool.wrap(data));
+    }
+
+    /**
+     * reduce number of UI updates by merging data chunks.
+     * Data can arrive at hundred chunks per second, but the UI can only
+     * perform a dozen updates if receiveText already contains much text.
+     *
+     * While attached, merging is done by ReadMerger without taking the
+     * service monitor, so the socket thread never waits for the main thread.
+     * With framing, the framer gets the data and onFrame() delivers the frames instead.
+     */
+    public void onSerialRead(ReceiveBufferPool.Slice data) {
+        if(connected) {
+            Framer framer = this.framer;
+            if(framer != null) {
+                framer.feed(data.buffer, 0, data.length);
+                data.release();
+                return;
+            }
+            if (listener == null) {
+                synchronized (this) {
+                    if (listener == null) {
+                        queueDetached(data, false);
+                        return;
+                    }
+                }
+            }
+            readMerger.write(data);
+        } else {
+            data.release();
+        }
+    }
+
+    /**
+     * socket thread. the frame buffer is reused by the framer, so the frame is copied
+     */
+    private void onFrame(byte[] frame, int off, int len) {
+        ReceiveBufferPool.Slice data = frameSlice(len);
+        System.arraycopy(frame, off, data.buffer, 0, len);
+        data.length = len;
+        if (listener == null) {
+            synchronized (this) {
+                if (listener == null) {
+                    queueDetached(data, true);
+                    return;
+                }
+            }
+        }
+        frameMerger.write(data);
+    }
+
+    /**
+     * pool slice if the frame fits, so frames are only allocated if larger than a slice
+     */
+    private ReceiveBufferPool.Slice frameSlice(int length) {
+        if(length <= readPool.getSliceSize())
+            return readPool.acquire();
+        return ReceiveBufferPool.wrap(new byte[length]);
+    }
+
+    /**
+     * keep data in memory up to detachedBacklogLimit, then spill to journal to keep heap flat.
+     * consecutive spilled data is merged into one queue item, except frames
+     */
+    private void queueDetached(ReceiveBufferPool.Slice data, boolean frame) {
+        QueueItem last = queue2.isEmpty() ? null : queue2.getLast();
+        if(queue2Bytes + data.length > detachedBacklogLimit) {
+            try {
+                if(spillJournal == null)
+                    spillJournal = new SpillJournal(new File(getCacheDir(), SPILL_JOURNAL_FILE));
+                long pos = spillJournal.append(data.buffer, 0, data.length);
+                if(frame || last == null || last.type != QueueType.Read || last.spillPos < 0 || last.frame) {
+                    last = new QueueItem(QueueType.Read, (ArrayDeque<ReceiveBufferPool.Slice>) null);
+                    last.spillPos = pos;
+                    last.frame = frame;
+                    queue2.add(last);
+                }
+                last.spillLength += data.length;
+                data.release();
+                return;
+            } catch (IOException ignored) {
+                // keep in memory
+            }
+        }
+        if(last == null || last.type != QueueType.Read || last.spillPos >= 0)
+            queue2.add(new QueueItem(QueueType.Read));
+        queue2.getLast().add(data);
+        queue2Bytes += data.length;
+    }
+
+    /**
+     * runs in main thread
+     */
+    private void onMergedRead(ArrayDeque<ReceiveBufferPool.Slice> datas) {
+        if (listener != null) {
+            listener.onSerialRead(datas);
+        } else {
+            queue1.add(new QueueItem(QueueType.Read, new ArrayDeque<>(datas)));
+        }
+    }
+
+    public void onSerialIoError(Exception e) {
+        if(connected) {
+            synchronized (this) {
+                if (listener != null) {
+                    mainLooper.post(() -> {
+                        if (listener != null) {
+                            listener.onSerialIoError(e);
+                        } else {
+                            queue1.add(new QueueItem(QueueType.IoError, e));
+                            disconnect();
+                        }
+                    });
+                } else {
+                    queue2.add(new QueueItem(QueueType.IoError, e));
+                    disconnect();
+                }
+            }
+        }
+    }
+
+}
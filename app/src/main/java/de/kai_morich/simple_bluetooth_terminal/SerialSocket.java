@@ -1,121 +1,182 @@
-package de.kai_morich.simple_bluetooth_terminal;
-
-import android.app.Activity;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-
-import androidx.core.content.ContextCompat;
-
-import java.io.IOException;
-import java.security.InvalidParameterException;
-import java.util.Arrays;
-import java.util.UUID;
-import java.util.concurrent.Executors;
-
-class SerialSocket implements Runnable {
-
-    private static final UUID BLUETOOTH_SPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-
-    private final BroadcastReceiver disconnectBroadcastReceiver;
-
-    private final Context context;
-    private SerialListener listener;
-    private final BluetoothDevice device;
-    private BluetoothSocket socket;
-    private boolean connected;
-
-    SerialSocket(Context context, BluetoothDevice device) {
-        if(context instanceof Activity)
-            throw new InvalidParameterException("expected non UI context");
-        this.context = context;
-        this.device = device;
-        disconnectBroadcastReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                if(listener != null)
-                    listener.onSerialIoError(new IOException("background disconnect"));
-                disconnect(); // disconnect now, else would be queued until UI re-attached
-            }
-        };
-    }
-
-    String getName() {
-        return device.getName() != null ? device.getName() : device.getAddress();
-    }
-
-    /**
-     * connect-success and most connect-errors are returned asynchronously to listener
-     */
-    void connect(SerialListener listener) throws IOException {
-        this.listener = listener;
-        ContextCompat.registerReceiver(context, disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT), ContextCompat.RECEIVER_NOT_EXPORTED);
-        Executors.newSingleThreadExecutor().submit(this);
-    }
-
-    void disconnect() {
-        listener = null; // ignore remaining data and errors
-        // connected = false; // run loop will reset connected
-        if(socket != null) {
-            try {
-                socket.close();
-            } catch (Exception ignored) {
-            }
-            socket = null;
-        }
-        try {
-            context.unregisterReceiver(disconnectBroadcastReceiver);
-        } catch (Exception ignored) {
-        }
-    }
-
-    void write(byte[] data) throws IOException {
-        if (!connected)
-            throw new IOException("not connected");
-        socket.getOutputStream().write(data);
-    }
-
-    @Override
-    public void run() { // connect & read
-        try {
-            socket = device.createRfcommSocketToServiceRecord(BLUETOOTH_SPP);
-            socket.connect();
-            if(listener != null)
-                listener.onSerialConnect();
-        } catch (Exception e) {
-            if(listener != null)
-                listener.onSerialConnectError(e);
-            try {
-                socket.close();
-            } catch (Exception ignored) {
-            }
-            socket = null;
-            return;
-        }
-        connected = true;
-        try {
-            byte[] buffer = new byte[1024];
-            int len;
-            //noinspection InfiniteLoopStatement
-            while (true) {
-                len = socket.getInputStream().read(buffer);
-                byte[] data = Arrays.copyOf(buffer, len);
-                if(listener != null)
-                    listener.onSerialRead(data);
-            }
-        } catch (Exception e) {
-            connected = false;
-            if (listener != null)
-                listener.onSerialIoError(e);
-            try {
-                socket.close();
-            } catch (Exception ignored) {
-            }
-            socket = null;
-        }
-    }
-
-}
+package de.kai_morich.simple_bluetooth_terminal;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import androidx.core.content.ContextCompat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidParameterException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * connect, read and write via a SerialTransport, RFCOMM by default
+ */
+class SerialSocket implements Runnable {
+
+    private final BroadcastReceiver disconnectBroadcastReceiver;
+
+    private final Context context;
+    private final ReceiveBufferPool pool = new ReceiveBufferPool();
+    private SerialListener listener;
+    private final SerialTransport transport;
+    private volatile SerialWriter writer; // assigned by socket thread, used by caller of write()
+    private volatile boolean connected;
+    private volatile SessionCapture capture;
+    private volatile Future<?> readLoop;
+
+    SerialSocket(Context context, BluetoothDevice device) {
+        this(context, new RfcommTransport(device));
+    }
+
+    /**
+     * @param context used for background disconnect, can be null if not running in an App, e.g. for throughput tests
+     */
+    SerialSocket(Context context, SerialTransport transport) {
+        if(context instanceof Activity)
+            throw new InvalidParameterException("expected non UI context");
+        this.context = context;
+        this.transport = transport;
+        disconnectBroadcastReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if(listener != null)
+                    listener.onSerialIoError(new IOException("background disconnect"));
+                disconnect(); // disconnect now, else would be queued until UI re-attached
+            }
+        };
+    }
+
+    String getName() {
+        return transport.getName();
+    }
+
+    /**
+     * record all data read and written from now on, null to stop
+     */
+    void setCapture(SessionCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * connect-success and most connect-errors are returned asynchronously to listener
+     */
+    void connect(SerialListener listener) throws IOException {
+        this.listener = listener;
+        if(context != null)
+            ContextCompat.registerReceiver(context, disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT), ContextCompat.RECEIVER_NOT_EXPORTED);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        readLoop = executor.submit(this);
+        executor.shutdown(); // thread ends with the read loop
+    }
+
+    /**
+     * wait until the read loop has ended, e.g. after disconnect(), so no listener call
+     * of this socket is running anymore
+     */
+    void awaitTermination() throws InterruptedException {
+        Future<?> readLoop = this.readLoop;
+        if(readLoop == null)
+            return;
+        try {
+            readLoop.get();
+        } catch (ExecutionException ignored) {
+        }
+    }
+
+    void disconnect() {
+        listener = null; // ignore remaining data and errors
+        // connected = false; // run loop will reset connected
+        if(writer != null) {
+            writer.close();
+            writer = null;
+        }
+        try {
+            transport.close();
+        } catch (Exception ignored) {
+        }
+        try {
+            if(context != null)
+                context.unregisterReceiver(disconnectBroadcastReceiver);
+        } catch (Exception ignored) {
+        }
+    }
+
+    /**
+     * queue data for writer thread, callback is called from writer thread
+     * @return false if write queue is full
+     * @throws IOException if not connected or the writer thread stopped after a write error
+     */
+    boolean write(byte[] data, SerialWriter.Callback callback) throws IOException {
+        SerialWriter writer = this.writer;
+        if (!connected || writer == null)
+            throw new IOException("not connected");
+        if(!writer.offer(data, callback)) {
+            if(writer.isClosed())
+                throw new IOException("connection lost");
+            return false;
+        }
+        SessionCapture capture = this.capture;
+        if(capture != null)
+            capture.record(SessionCapture.DIRECTION_OUT, data);
+        return true;
+    }
+
+    @Override
+    public void run() { // connect & read
+        try {
+            transport.connect();
+            writer = new SerialWriter(transport.getOutputStream());
+            writer.start();
+            if(listener != null)
+                listener.onSerialConnect();
+        } catch (Exception e) {
+            if(listener != null)
+                listener.onSerialConnectError(e);
+            try {
+                transport.close();
+            } catch (Exception ignored) {
+            }
+            return;
+        }
+        connected = true;
+        try {
+            InputStream in = transport.getInputStream();
+            ReceiveBufferPool.Slice slice;
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                slice = pool.acquire();
+                slice.length = in.read(slice.buffer);
+                if(slice.length < 0)
+                    throw new IOException("end of stream");
+                SessionCapture capture = this.capture;
+                if(capture != null)
+                    capture.record(SessionCapture.DIRECTION_IN, slice.buffer, 0, slice.length);
+                SerialListener listener = this.listener; // disconnect() might reset it concurrently
+                if(listener != null)
+                    listener.onSerialRead(slice);
+                else
+                    slice.release();
+            }
+        } catch (Exception e) {
+            connected = false;
+            if (writer != null)
+                writer.close();
+            if (listener != null)
+                listener.onSerialIoError(e);
+            try {
+                transport.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+}
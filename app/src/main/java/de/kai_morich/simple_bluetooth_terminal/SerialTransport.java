@@ -0,0 +1,19 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * byte stream link used by SerialSocket
+ *
+ * connect() is called from the socket thread and may block.
+ * close() can be called from any thread and has to unblock pending reads.
+ */
+interface SerialTransport {
+    String       getName         ();
+    void         connect         () throws IOException;
+    InputStream  getInputStream  () throws IOException;
+    OutputStream getOutputStream () throws IOException;
+    void         close           () throws IOException;
+}
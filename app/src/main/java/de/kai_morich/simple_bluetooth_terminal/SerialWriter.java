@@ -0,0 +1,168 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * write data from a dedicated thread, so a stalled link does not block the caller.
+ *
+ * Small writes queued within maxDelayMillis are coalesced into one flush of up to
+ * maxBatchSize bytes. The queue is bounded by queueCapacity bytes, offer() returns
+ * false instead of blocking when it is full.
+ */
+final class SerialWriter implements Runnable {
+
+    /**
+     * called from writer thread
+     */
+    interface Callback {
+        void onWriteComplete();
+        void onWriteError(IOException e);
+    }
+
+    static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+    static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 2;
+
+    private static class Item {
+        final byte[] data;
+        final Callback callback;
+
+        Item(byte[] data, Callback callback) { this.data=data; this.callback=callback; }
+    }
+
+    private final OutputStream out;
+    private final int queueCapacity;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final byte[] batch;
+    private final ArrayDeque<Item> queue = new ArrayDeque<>();
+    private final ArrayDeque<Item> inFlight = new ArrayDeque<>();
+    private int queuedBytes;
+    private boolean closed;
+
+    SerialWriter(OutputStream out) {
+        this(out, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    SerialWriter(OutputStream out, int queueCapacity, int maxBatchSize, long maxDelayMillis) {
+        this.out = out;
+        this.queueCapacity = queueCapacity;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.batch = new byte[maxBatchSize];
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "SerialWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return false if queue is full or writer closed, data is not queued then
+     */
+    synchronized boolean offer(byte[] data, Callback callback) {
+        if(closed)
+            return false;
+        // always accept into an empty queue, else a single large write could never pass
+        if(!queue.isEmpty() && queuedBytes + data.length > queueCapacity)
+            return false;
+        queue.add(new Item(data, callback));
+        queuedBytes += data.length;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * true after close() or a write error, offer() fails then
+     */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * stop writer thread. queued data is dropped and reported as error
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                int len = takeBatch();
+                if (len < 0) {
+                    Item item = inFlight.getFirst(); // too large for batch
+                    out.write(item.data);
+                } else {
+                    out.write(batch, 0, len);
+                }
+                for (Item item : inFlight)
+                    if (item.callback != null)
+                        item.callback.onWriteComplete();
+                inFlight.clear();
+            }
+        } catch (InterruptedException | IOException e) {
+            IOException ioe = e instanceof IOException ? (IOException) e : new IOException("writer closed");
+            ArrayDeque<Item> failed = new ArrayDeque<>(inFlight);
+            synchronized (this) {
+                closed = true;
+                failed.addAll(queue);
+                queue.clear();
+                queuedBytes = 0;
+            }
+            for (Item item : failed)
+                if (item.callback != null)
+                    item.callback.onWriteError(ioe);
+        }
+    }
+
+    /**
+     * wait for data, then collect more data for at most maxDelayMillis
+     * @return number of bytes in batch, or -1 if first item is too large and has to be written directly
+     */
+    private synchronized int takeBatch() throws InterruptedException {
+        while (queue.isEmpty() && !closed)
+            wait();
+        if (closed)
+            throw new InterruptedException();
+        Item item = queue.removeFirst();
+        queuedBytes -= item.data.length;
+        inFlight.add(item);
+        if (item.data.length >= maxBatchSize)
+            return -1;
+        System.arraycopy(item.data, 0, batch, 0, item.data.length);
+        int len = item.data.length;
+        long deadline = System.currentTimeMillis() + maxDelayMillis;
+        while (len < maxBatchSize) {
+            if (queue.isEmpty()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || closed)
+                    break;
+                wait(remaining);
+                continue;
+            }
+            item = queue.getFirst();
+            if (len + item.data.length > maxBatchSize)
+                break;
+            queue.removeFirst();
+            queuedBytes -= item.data.length;
+            inFlight.add(item);
+            System.arraycopy(item.data, 0, batch, len, item.data.length);
+            len += item.data.length;
+        }
+        return len;
+    }
+
+}
@@ -0,0 +1,220 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * binary capture of all data sent and received in a session, for replay with SessionReplay.
+ *
+ * File format: 16 byte header (magic "SBTC", version, flags, start time in ms since epoch,
+ * all little endian), then one record per chunk: direction byte, microseconds since the
+ * previous record and data length as unsigned varints, data. Time is taken from the
+ * monotonic System.nanoTime(). Records are appended into memory-mapped windows like
+ * SpillJournal, close() truncates the file to the written size. A file not closed, e.g.
+ * after a crash, ends with zero bytes, which the Reader treats as end of capture.
+ *
+ * Thread safe, the socket thread, the writer thread and GATT callbacks record concurrently.
+ */
+final class SessionCapture implements Closeable {
+
+    static final int DIRECTION_IN = 1;
+    static final int DIRECTION_OUT = 2;
+    static final int HEADER_LENGTH = 16;
+    static final int WINDOW_SIZE = 1024 * 1024;
+    private static final int MAGIC = 0x43544253; // "SBTC"
+    private static final int VERSION = 1;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long startNanos;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long size;
+    private long lastMicros;
+    private IOException error;
+    private boolean closed;
+
+    SessionCapture(File file) throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        startNanos = System.nanoTime();
+        putInt(MAGIC);
+        putByte(VERSION);
+        putByte(0);
+        putByte(0);
+        putByte(0);
+        long now = System.currentTimeMillis();
+        putInt((int) now);
+        putInt((int) (now >>> 32));
+    }
+
+    /**
+     * record a chunk. never throws, after an I/O error recording stops, see getError()
+     */
+    synchronized void record(int direction, byte[] data, int off, int len) {
+        if (closed || error != null)
+            return;
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        try {
+            putByte(direction);
+            putVarint(Math.max(0, micros - lastMicros));
+            putVarint(len);
+            while (len > 0) {
+                ensureWindow();
+                int n = Math.min(len, window.remaining());
+                window.put(data, off, n);
+                off += n;
+                len -= n;
+                size += n;
+            }
+            lastMicros = Math.max(lastMicros, micros);
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    void record(int direction, byte[] data) {
+        record(direction, data, 0, data.length);
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized IOException getError() {
+        return error;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        window = null;
+        try {
+            channel.truncate(size);
+        } catch (IOException ignored) {
+            // unmapped windows can keep the file at window size, the zero tail ends the capture
+        }
+        try {
+            raf.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void ensureWindow() throws IOException {
+        if (window == null || !window.hasRemaining()) {
+            windowStart = size;
+            window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_SIZE);
+        }
+    }
+
+    private void putByte(int b) throws IOException {
+        ensureWindow();
+        window.put((byte) b);
+        size++;
+    }
+
+    private void putInt(int value) throws IOException {
+        for (int i = 0; i < 4; i++)
+            putByte(value >>> (8 * i));
+    }
+
+    private void putVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            putByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        putByte((int) value);
+    }
+
+    /**
+     * sequential reader, e.g. for a capture opened from a content Uri
+     */
+    static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long startTimeMillis;
+        private byte[] data = new byte[1024];
+        private int direction;
+        private int length;
+        private long timeMicros;
+
+        Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            if (readIntLe() != MAGIC)
+                throw new IOException("not a session capture");
+            int version = this.in.readUnsignedByte();
+            if (version != VERSION)
+                throw new IOException("unsupported capture version " + version);
+            this.in.skipBytes(3);
+            startTimeMillis = (readIntLe() & 0xffffffffL) | (long) readIntLe() << 32;
+        }
+
+        long getStartTimeMillis() { return startTimeMillis; }
+        int getDirection() { return direction; }
+        /**
+         * @return microseconds since capture start
+         */
+        long getTimeMicros() { return timeMicros; }
+        int getLength() { return length; }
+        /**
+         * reused by next(), valid up to getLength()
+         */
+        byte[] getData() { return data; }
+
+        /**
+         * @return false at end of capture
+         */
+        boolean next() throws IOException {
+            int b = in.read();
+            if (b <= 0) // end of file or zero tail of an unclosed capture
+                return false;
+            direction = b;
+            timeMicros += readVarint();
+            long len = readVarint();
+            if (len > Integer.MAX_VALUE - 8)
+                throw new IOException("invalid record length " + len);
+            length = (int) len;
+            if (data.length < length)
+                data = new byte[Math.max(length, 2 * data.length)];
+            in.readFully(data, 0, length);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private int readIntLe() throws IOException {
+            int value = 0;
+            for (int i = 0; i < 4; i++)
+                value |= in.readUnsignedByte() << (8 * i);
+            return value;
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0)
+                    throw new EOFException("truncated record");
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("invalid varint");
+        }
+    }
+
+}
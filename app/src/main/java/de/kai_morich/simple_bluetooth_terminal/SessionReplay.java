@@ -0,0 +1,117 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * feed a SessionCapture back into a SerialListener, like SerialSocket does for a live connection.
+ *
+ * Received chunks are delivered as pool slices with the original chunk boundaries, sent chunks
+ * are skipped. Timing is the captured timing divided by speed, MAX_SPEED replays without
+ * waiting, e.g. to benchmark the listener chain. The replay ends with onSerialIoError like
+ * the end of stream of a socket.
+ */
+final class SessionReplay implements Runnable {
+
+    static final double ORIGINAL_SPEED = 1.0;
+    static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final InputStream in;
+    private final double speed;
+    private final ReceiveBufferPool pool = new ReceiveBufferPool();
+    private volatile SerialListener listener;
+    private volatile boolean stopped;
+    private volatile Thread thread;
+    private SerialSocket previous;
+
+    /**
+     * @param speed > 0, 2.0 replays twice as fast as captured
+     */
+    SessionReplay(InputStream in, double speed) {
+        if (!(speed > 0))
+            throw new IllegalArgumentException("speed must be > 0");
+        this.in = in;
+        this.speed = speed;
+    }
+
+    void start(SerialListener listener) {
+        start(listener, null);
+    }
+
+    /**
+     * @param previous socket feeding the same listener, replay waits until its read loop has ended
+     */
+    void start(SerialListener listener, @Nullable SerialSocket previous) {
+        this.listener = listener;
+        this.previous = previous;
+        Thread thread = new Thread(this, "SessionReplay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        listener = null; // ignore remaining data and errors
+        Thread thread = this.thread;
+        if (thread != null)
+            LockSupport.unpark(thread); // end a long pause now
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            if (previous != null)
+                previous.awaitTermination();
+        } catch (InterruptedException e) {
+            return;
+        }
+        previous = null;
+        try (SessionCapture.Reader reader = new SessionCapture.Reader(in)) {
+            SerialListener listener = this.listener;
+            if (listener != null)
+                listener.onSerialConnect();
+            long startNanos = System.nanoTime();
+            while (!stopped && reader.next()) {
+                if (reader.getDirection() != SessionCapture.DIRECTION_IN)
+                    continue;
+                if (speed != MAX_SPEED)
+                    waitUntil(startNanos + (long) (TimeUnit.MICROSECONDS.toNanos(reader.getTimeMicros()) / speed));
+                deliver(reader.getData(), reader.getLength());
+            }
+            if (!stopped)
+                throw new IOException("end of replay");
+        } catch (Exception e) {
+            SerialListener listener = this.listener;
+            if (listener != null)
+                listener.onSerialIoError(e);
+        }
+    }
+
+    private void waitUntil(long dueNanos) {
+        long delay;
+        while (!stopped && (delay = dueNanos - System.nanoTime()) > 0)
+            LockSupport.parkNanos(delay);
+    }
+
+    // chunks larger than a pool slice are split, as a socket read would have done
+    private void deliver(byte[] data, int length) {
+        int pos = 0;
+        while (pos < length) {
+            ReceiveBufferPool.Slice slice = pool.acquire();
+            slice.length = Math.min(length - pos, slice.buffer.length);
+            System.arraycopy(data, pos, slice.buffer, 0, slice.length);
+            pos += slice.length;
+            SerialListener listener = this.listener; // stop() might reset it concurrently
+            if (listener != null)
+                listener.onSerialRead(slice);
+            else
+                slice.release();
+        }
+    }
+
+}
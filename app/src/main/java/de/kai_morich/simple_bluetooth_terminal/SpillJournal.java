@@ -0,0 +1,111 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * append-only, memory-mapped journal file.
+ *
+ * The file is mapped in fixed size windows, so appending and reading back
+ * needs neither heap buffers nor a syscall per chunk.
+ * Not thread safe, callers have to synchronize.
+ */
+final class SpillJournal implements Closeable {
+
+    static final int WINDOW_SIZE = 1024 * 1024;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer writeWindow, readWindow;
+    private long writeWindowStart, readWindowStart;
+    private long size;
+
+    SpillJournal(File file) {
+        this.file = file;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return journal position of the first appended byte
+     */
+    long append(byte[] src, int off, int len) throws IOException {
+        if(channel == null) {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+        long start = size;
+        while(len > 0) {
+            if(writeWindow == null || !writeWindow.hasRemaining()) {
+                writeWindowStart = size;
+                writeWindow = channel.map(FileChannel.MapMode.READ_WRITE, writeWindowStart, WINDOW_SIZE);
+            }
+            int n = Math.min(len, writeWindow.remaining());
+            writeWindow.put(src, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+        return start;
+    }
+
+    /**
+     * @return number of bytes read, 0 at end of journal
+     */
+    int read(long pos, byte[] dst, int off, int len) throws IOException {
+        if(pos >= size)
+            return 0;
+        len = (int) Math.min(len, size - pos);
+        int total = 0;
+        while(len > 0) {
+            if(readWindow == null || pos < readWindowStart || pos >= readWindowStart + WINDOW_SIZE) {
+                readWindowStart = pos - pos % WINDOW_SIZE;
+                readWindow = channel.map(FileChannel.MapMode.READ_ONLY, readWindowStart, WINDOW_SIZE);
+            }
+            int n = (int) Math.min(len, readWindowStart + WINDOW_SIZE - pos);
+            readWindow.position((int) (pos - readWindowStart));
+            readWindow.get(dst, off, n);
+            pos += n;
+            off += n;
+            len -= n;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * discard content. mapped windows are dropped before the file is truncated
+     */
+    void reset() throws IOException {
+        writeWindow = null;
+        readWindow = null;
+        size = 0;
+        if(channel != null)
+            channel.truncate(0);
+    }
+
+    @Override
+    public void close() {
+        writeWindow = null;
+        readWindow = null;
+        size = 0;
+        if(raf != null) {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+            channel = null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+}
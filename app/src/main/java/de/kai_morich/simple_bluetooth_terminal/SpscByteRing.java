@@ -0,0 +1,92 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * lock-free single-producer/single-consumer byte ring buffer.
+ *
+ * write() must only be called from one thread (socket thread), read() only from
+ * one other thread (main thread). Neither side ever blocks, a full ring returns a
+ * short write and the producer decides how to wait.
+ */
+final class SpscByteRing {
+
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next position to read, owned by consumer
+    private final AtomicLong tail = new AtomicLong(); // next position to write, owned by producer
+    private long cachedHead; // producer local copy of head, avoids volatile read per write
+    private long cachedTail; // consumer local copy of tail
+
+    /**
+     * @param capacity power of 2
+     */
+    SpscByteRing(int capacity) {
+        if(capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity has to be power of 2");
+        buffer = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * number of bytes readable. exact for consumer, a lower bound for producer
+     */
+    int available() {
+        return (int) (tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    /**
+     * producer: copy as many bytes as fit
+     * @return number of bytes written, 0 if ring is full
+     */
+    int write(byte[] src, int off, int len) {
+        long t = tail.get();
+        int free = buffer.length - (int) (t - cachedHead);
+        if(free < len) {
+            cachedHead = head.get();
+            free = buffer.length - (int) (t - cachedHead);
+        }
+        int n = Math.min(free, len);
+        if(n <= 0)
+            return 0;
+        int pos = (int) t & mask;
+        int first = Math.min(n, buffer.length - pos);
+        System.arraycopy(src, off, buffer, pos, first);
+        if(first < n)
+            System.arraycopy(src, off + first, buffer, 0, n - first);
+        tail.lazySet(t + n); // publish after copy
+        return n;
+    }
+
+    /**
+     * consumer: copy up to len bytes
+     * @return number of bytes read, 0 if ring is empty
+     */
+    int read(byte[] dst, int off, int len) {
+        long h = head.get();
+        int used = (int) (cachedTail - h);
+        if(used < len) {
+            cachedTail = tail.get();
+            used = (int) (cachedTail - h);
+        }
+        int n = Math.min(used, len);
+        if(n <= 0)
+            return 0;
+        int pos = (int) h & mask;
+        int first = Math.min(n, buffer.length - pos);
+        System.arraycopy(buffer, pos, dst, off, first);
+        if(first < n)
+            System.arraycopy(buffer, 0, dst, off + first, n - first);
+        head.lazySet(h + n); // release space after copy
+        return n;
+    }
+
+}
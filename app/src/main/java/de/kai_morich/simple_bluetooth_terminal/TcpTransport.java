@@ -0,0 +1,66 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP stand-in for RFCOMM, e.g. to drive the receive path from a traffic
+ * generator on localhost at controlled data rates without Bluetooth hardware
+ */
+class TcpTransport implements SerialTransport {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+
+    TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.socket = socket;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if(socket == null)
+            throw new IOException("not connected");
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if(socket == null)
+            throw new IOException("not connected");
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket socket = this.socket;
+        this.socket = null;
+        if(socket != null)
+            socket.close();
+    }
+
+}
@@ -1,499 +1,532 @@
 package de.kai_morich.simple_bluetooth_terminal
 
 import android.annotation.SuppressLint
-import android.bluetooth.BluetoothAdapter
 import android.bluetooth.BluetoothDevice
-import android.bluetooth.BluetoothGatt
-import android.graphics.Color
-import android.os.Build
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.ServiceConnection
+import android.net.Uri
 import android.os.Bundle
-import android.text.Spannable
-import android.text.SpannableStringBuilder
-import android.text.method.ScrollingMovementMethod
-import android.text.style.ForegroundColorSpan
+import android.os.Handler
+import android.os.IBinder
+import android.os.Looper
 import android.util.Log
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
+import android.view.inputmethod.EditorInfo
+import android.widget.AdapterView
 import android.widget.Button
+import android.widget.CheckBox
+import android.widget.EditText
+import android.widget.ListView
+import android.widget.Spinner
 import android.widget.TextView
 import android.widget.Toast
+import androidx.activity.result.contract.ActivityResultContracts
 import androidx.fragment.app.Fragment
-import com.clj.fastble.BleManager
 import com.clj.fastble.data.BleDevice
-import com.clj.fastble.exception.BleException
-import com.clj.fastble.callback.BleGattCallback
-import com.clj.fastble.callback.BleMtuChangedCallback
-import com.clj.fastble.callback.BleNotifyCallback
-import com.clj.fastble.callback.BleWriteCallback
 import de.kai_morich.simple_bluetooth_terminal.OtaUpdateManager.TAG
-import de.kai_morich.simple_bluetooth_terminal.OtaUpdateManager.sendOtaCommand
-import java.nio.ByteBuffer
-import java.nio.ByteOrder
+import java.io.File
+import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.ArrayDeque
+import java.util.Date
+import java.util.Locale
 
 class TerminalFragment : Fragment() {
 
-    private lateinit var receiveText: TextView
+    companion object {
+        private const val MAX_OTA_RECONNECTS = 3
+        private const val OTA_RECONNECT_DELAY_MILLIS = 2000L
+    }
+
+    private lateinit var receiveList: ListView
+    private var scrollback: ScrollbackAdapter? = null
+    private var renderer: RenderBatcher? = null
     private lateinit var otaBtn: Button
+    private lateinit var captureBtn: Button
+    private var framingSpinner: Spinner? = null
+    private var history: ReceiveHistory? = null
+    private var searchText: EditText? = null
+    private var searchHex: CheckBox? = null
+    private var searchResult: TextView? = null
+    private var searchQuery: String? = null
+    private var searchIndex = -1
+    private var searchPos = -1L
+    private var searchScanning = false
+    // 搜索线程的进度在主线程显示
+    private val searchListener = ReceiveHistory.Listener { _, _, _, complete ->
+        metricsHandler.post {
+            searchScanning = !complete
+            showSearchResult()
+        }
+    }
     private var bleDevice: BleDevice? = null
-    private var step = 0
-
-
-
-
-    var bluetoothDevice: BluetoothDevice? = null
-
-
-    override fun onResume() {
-        super.onResume()
-        // 从上一个Fragment获取传递过来的设备地址
-        val deviceAddress = arguments?.getString("device_address")
-
-        // 在你的代码中获取到 BluetoothDevice
-//        val bluetoothAdapter: BluetoothAdapter? = BluetoothAdapter.getDefaultAdapter()
-//        bluetoothDevice = bluetoothAdapter?.getRemoteDevice("B0:D2:78:48:5D:F3")
-
-        // 连接设备
-//        bluetoothDevice?.let {
-//            (activity as MainActivity).bleOtaManager.connect(it)
-//        }
-
-        // 连接设备
-        connectDevice(deviceAddress)
+    private var mtu = MtuNegotiator.DEFAULT_MTU
+    private val linkProfiles by lazy { LinkProfileStore(requireContext()) }
+    private val mtuNegotiator by lazy { MtuNegotiator(linkProfiles) }
+    private var otaEngine: OtaEngine? = null
+    private var otaFirmware: Uri? = null // for resume after reconnect
+    private var otaReconnects = 0
+    private val otaReconnect = Runnable {
+        if (isAdded && !connected)
+            connect()
+    }
+    private val otaCheckpoints by lazy { OtaCheckpointStore(requireContext()) }
+    private var metricsView: TextView? = null
+    private val metricsHandler = Handler(Looper.getMainLooper())
+    // 升级过程中每 500ms 刷新一次统计
+    private val metricsUpdate = object : Runnable {
+        override fun run() {
+            showMetrics()
+            if (isOtaActive())
+                metricsHandler.postDelayed(this, 500)
+        }
+    }
+    private val firmwarePicker = registerForActivityResult(ActivityResultContracts.OpenDocument()) { uri ->
+        uri?.let {
+            otaReconnects = 0
+            startOtaProcess(it)
+        }
+    }
+    private val replayPicker = registerForActivityResult(ActivityResultContracts.OpenDocument()) { uri ->
+        uri?.let { replay(it) }
     }
-
-    override fun onCreateView(
-        inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?
-    ): View? {
-        val view = inflater.inflate(R.layout.fragment_terminal, container, false)
-        receiveText = view.findViewById(R.id.receive_text)
-        receiveText.movementMethod = ScrollingMovementMethod()
-        otaBtn = view.findViewById(R.id.ota_btn)
 
 
-        // 设置OTA按钮的点击事件
-        otaBtn.setOnClickListener {
-            startOtaProcess() // 点击按钮触发OTA流程
-//            (activity as MainActivity).bleOtaManager.startOtaProcess()
 
-        }
 
-        return view
-    }
+    private var service: SerialService? = null
+    private var transport: BleTransport? = null
+    private var connected = false
+    private var initialStart = true
 
-    // 连接设备
-    private fun connectDevice(address: String?) {
-        if (address.isNullOrEmpty()) {
-            receiveText.append("Device address is null or empty\n")
-            return
+    // 数据经 SerialService 转发, 界面不在前台时由服务排队缓存
+    private val serialListener = object : SerialListener {
+        override fun onSerialConnect() {
+            val transport = transport
+            if (transport == null) { // SessionReplay
+                renderer?.status("Replaying capture\n")
+                return
+            }
+            renderer?.status("Connected to ${transport.name}, MTU ${transport.mtu}\n")
+            connected = true
+            mtu = transport.mtu
+            val device = transport.bleDevice
+            bleDevice = device
+            device?.let { resumeOtaProcess(it) }
         }
 
-        BleManager.getInstance().connect(address, object : BleGattCallback() {
-            override fun onStartConnect() {
-                receiveText.append("Connecting to device...\n")
-            }
+        override fun onSerialConnectError(e: Exception) {
+            renderer?.status("Connect failed: ${e.message}\n")
+            disconnect()
+            scheduleOtaReconnect()
+        }
 
-            override fun onConnectFail(bleDevice: BleDevice?, exception: BleException?) {
-                receiveText.append("Connect failed: ${exception?.description}\n")
-            }
+        override fun onSerialRead(data: ByteArray) {
+            history?.append(data, 0, data.size)
+            renderer?.received(data)
+        }
 
-            override fun onConnectSuccess(
-                bleDevice: BleDevice?,
-                gatt: BluetoothGatt?,
-                status: Int
-            ) {
-                receiveText.append("Connected to device\n")
-                this@TerminalFragment.bleDevice = bleDevice
-                setNotification() // 设置通知
-                findMaxMTU()
-            }
+        override fun onSerialRead(slice: ReceiveBufferPool.Slice) {
+            throw UnsupportedOperationException()
+        }
 
-            override fun onDisConnected(
-                isActiveDisConnected: Boolean,
-                device: BleDevice?,
-                gatt: BluetoothGatt?,
-                status: Int
-            ) {
-                receiveText.append("Disconnected from device\n")
+        override fun onSerialRead(slices: ArrayDeque<ReceiveBufferPool.Slice>) {
+            for (slice in slices) {
+                history?.append(slice.buffer, 0, slice.length)
+                renderer?.received(slice.buffer, 0, slice.length)
+                slice.release()
             }
-        })
-    }
-
-    private fun setMaxMTU() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            val maxMTU = 50  // 直接尝试设置为最大值 512
-
-            BleManager.getInstance()
-                .setMtu(bleDevice, maxMTU, object : BleMtuChangedCallback() {
-                    override fun onSetMTUFailure(exception: BleException) {
-                        // 设置 MTU 失败，设备可能不支持 512，可以记录并处理
-                        Log.e(TAG, "Failed to set MTU to $maxMTU: ${exception.description}")
-                    }
+        }
 
-                    override fun onMtuChanged(mtu: Int) {
-                        // 设置 MTU 成功，记录当前设备实际支持的 MTU
-                        Log.i(TAG, "MTU successfully set to $mtu")
-                    }
-                })
-        } else {
-            // 如果设备的 API 低于 21，不支持 MTU 调整
-            Log.i(TAG, "MTU setting is not supported on devices below API 21.")
+        override fun onSerialIoError(e: Exception) {
+            renderer?.status("Connection lost: ${e.message}\n")
+            otaEngine?.onLinkError("disconnected") // saves checkpoint
+            disconnect()
+            scheduleOtaReconnect()
         }
     }
-    private fun findMaxMTU() {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            // 初始设置默认MTU值
-            val defaultMTU = 23
-            val maxPossibleMTU = 512 // 你期望的最大MTU值或系统允许的最大MTU值
-            var currentMTU = defaultMTU
-
-            fun trySetMTU(currentMTU: Int) {
-                BleManager.getInstance().setMtu(bleDevice, currentMTU, object : BleMtuChangedCallback() {
-                    override fun onMtuChanged(mtu: Int) {
-                        Log.d(TAG, "MTU set to: $mtu")
-                        if (mtu < maxPossibleMTU && mtu != currentMTU) {
-                            // 如果MTU没有达到最大值，继续增加MTU值
-                            trySetMTU(mtu + 1)
-                        } else {
-                            Log.d(TAG, "Max MTU supported: $mtu")
-                        }
-                    }
 
-                    override fun onSetMTUFailure(exception: BleException) {
-                        Log.e(TAG, "Failed to set MTU to: $currentMTU, reason: ${exception.description}")
-                        if (currentMTU > 23) {
-                            Log.d(TAG, "Max MTU supported: ${currentMTU - 1}")
-                        }
-                    }
-                })
+    private val serviceConnection = object : ServiceConnection {
+        override fun onServiceConnected(name: ComponentName, binder: IBinder) {
+            val service = (binder as SerialService.SerialBinder).service
+            this@TerminalFragment.service = service
+            framingSpinner?.setSelection(service.framing)
+            service.attach(serialListener)
+            if (initialStart && isResumed) {
+                initialStart = false
+                connect()
             }
+        }
 
-            trySetMTU(currentMTU + 1)  // 开始尝试设置比默认值更大的MTU
-        } else {
-            Log.d(TAG, "MTU setting is not required for devices below API 21.")
+        override fun onServiceDisconnected(name: ComponentName) {
+            service = null
         }
     }
 
-    // 设置通知以接收数据
-    private fun setNotification() {
-        if (bleDevice == null) return
-
-        BleManager.getInstance().notify(
-            bleDevice,
-            OtaUpdateManager.uuid_service,
-            OtaUpdateManager.uuid_notify,
-            object : BleNotifyCallback() {
-                override fun onNotifySuccess() {
-                    receiveText.append("Notification set successfully\n")
-                }
-
-                override fun onNotifyFailure(exception: BleException?) {
-                    receiveText.append("Failed to set notification: ${exception?.description}\n")
-                }
+    /*
+     * Lifecycle
+     */
+    @Suppress("DEPRECATION")
+    override fun onCreate(savedInstanceState: Bundle?) {
+        super.onCreate(savedInstanceState)
+        retainInstance = true // keep scrollback, OTA engine and service binding on rotation
+        history = ReceiveHistory(File(requireContext().cacheDir, "receive_history.journal"))
+    }
 
-                override fun onCharacteristicChanged(data: ByteArray) {
-                    receiveMessage(data)
-                    // 根据收到的数据判断是否要进行下一步OTA操作
-                    processOtaResponse(data)
-                }
-            })
+    override fun onStart() {
+        super.onStart()
+        val service = service
+        if (service != null)
+            service.attach(serialListener)
+        else
+            requireActivity().startService(Intent(activity, SerialService::class.java)) // prevents service destroy on unbind from recreated activity caused by orientation change
     }
 
-    // 接收消息并显示为绿色
-    private fun receiveMessage(data: ByteArray) {
-        val receivedMessage = byteArrayToHex(data)
-        val spn = SpannableStringBuilder(receivedMessage)
-        spn.setSpan(
-            ForegroundColorSpan(Color.GREEN), 0, spn.length,
-            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
-        )
-        receiveText.append(spn)
-        receiveText.append("\n")
+    override fun onStop() {
+        val service = service
+        if (service != null && !requireActivity().isChangingConfigurations)
+            service.detach()
+        super.onStop()
     }
 
-    // 发送消息并显示为浅蓝色
-    private fun sendMessage(command: ByteArray) {
-//        val messageToSend = byteArrayToHex(command)
-//        val spn = SpannableStringBuilder(messageToSend)
-//        spn.setSpan(
-//            ForegroundColorSpan(Color.parseColor("#ADD8E6")), 0, spn.length,
-//            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE // 浅蓝色
-//        )
-//        receiveText.append(spn)
-//        receiveText.append("\n")
-
-        // 发送指令到设备
-        BleManager.getInstance()
-            .write(bleDevice, OtaUpdateManager.uuid_service, OtaUpdateManager.uuid_notify,
-                command, object : BleWriteCallback() {
-                    override fun onWriteSuccess(current: Int, total: Int, justWrite: ByteArray?) {
-                        val spn = SpannableStringBuilder(byteArrayToHex(justWrite!!))
-                        spn.setSpan(
-                            ForegroundColorSpan(Color.YELLOW), 0, spn.length,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE
-                        )
-
-                        receiveText.append("Write Success: ${spn}\n")
-                    }
+    override fun onAttach(context: Context) {
+        super.onAttach(context)
+        requireActivity().bindService(Intent(activity, SerialService::class.java), serviceConnection, Context.BIND_AUTO_CREATE)
+    }
 
-                    override fun onWriteFailure(exception: BleException?) {
+    override fun onDetach() {
+        try {
+            requireActivity().unbindService(serviceConnection)
+        } catch (ignored: Exception) {
+        }
+        super.onDetach()
+    }
 
-                        receiveText.append("Write failed: ${exception?.description}\n")
-                    }
-                })
+    override fun onResume() {
+        super.onResume()
+        if (initialStart && service != null) {
+            initialStart = false
+            connect()
+        }
     }
 
-    private fun startOtaProcess() {
-        receiveText.append("\n")
+    override fun onCreateView(
+        inflater: LayoutInflater, container: ViewGroup?, savedInstanceState: Bundle?
+    ): View? {
+        val view = inflater.inflate(R.layout.fragment_terminal, container, false)
+        // adapter outlives the view, so scrollback is kept when the view is recreated
+        val scrollback = this.scrollback ?: ScrollbackAdapter(requireContext()).also {
+            this.scrollback = it
+            renderer = RenderBatcher(it)
+        }
+        receiveList = view.findViewById(R.id.receive_list)
+        receiveList.adapter = scrollback
+        otaBtn = view.findViewById(R.id.ota_btn)
+        captureBtn = view.findViewById(R.id.capture_btn)
+        captureBtn.text = if (service?.isCapturing == true) "stop" else "rec"
+        captureBtn.setOnClickListener { toggleCapture() }
+        view.findViewById<Button>(R.id.replay_btn).setOnClickListener {
+            replayPicker.launch(arrayOf("*/*"))
+        }
+        // 输入的文本加 CR+LF 发送, 与 Line CR+LF 分帧对应
+        val sendText = view.findViewById<EditText>(R.id.send_text)
+        view.findViewById<View>(R.id.send_btn).setOnClickListener {
+            sendMessage((sendText.text.toString() + TextUtil.newline_crlf).toByteArray())
+        }
+        // 分帧方式保存在服务中, 选择后按帧显示, 每帧一个数据包
+        framingSpinner = view.findViewById<Spinner>(R.id.framing).also {
+            service?.let { service -> it.setSelection(service.framing) }
+            it.onItemSelectedListener = object : AdapterView.OnItemSelectedListener {
+                override fun onItemSelected(parent: AdapterView<*>?, view: View?, position: Int, id: Long) {
+                    val service = service ?: return
+                    if (position != service.framing)
+                        service.setFraming(position)
+                }
 
-        when (step) {
-            0 -> {
-                // Step 0: 发送 OTA_UPDATE 命令
-                val otaUpdateCommand = byteArrayOf(0x55.toByte(), 0x36.toByte(), 0xAA.toByte())
-                sendOtaCommand(bleDevice, otaUpdateCommand, receiveText)
-                receiveText.append("Sent OTA_UPDATE command\n")
+                override fun onNothingSelected(parent: AdapterView<*>?) {}
             }
-
-            1 -> {
-                // Step 1: 发送 OTA_START 命令
-                val otaStartCommand = byteArrayOf(
-                    0xAA.toByte(),
-                    0x00.toByte(),
-                    0x01.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0xBB.toByte()
-                )
-                sendOtaCommand(bleDevice, otaStartCommand, receiveText)
-                receiveText.append("Sent OTA_START command\n")
+        }
+        searchText = view.findViewById<EditText>(R.id.search_text).also {
+            it.setOnEditorActionListener { _, actionId, _ ->
+                if (actionId == EditorInfo.IME_ACTION_SEARCH) {
+                    search(0)
+                    true
+                } else false
             }
+        }
+        searchHex = view.findViewById<CheckBox>(R.id.search_hex).also {
+            it.setOnCheckedChangeListener { _, _ -> searchQuery = null }
+        }
+        searchResult = view.findViewById(R.id.search_result)
+        view.findViewById<Button>(R.id.search_prev).setOnClickListener { search(-1) }
+        view.findViewById<Button>(R.id.search_next).setOnClickListener { search(1) }
+        showSearchResult()
+        metricsView = view.findViewById<TextView>(R.id.ota_metrics).also {
+            it.setOnClickListener { view -> view.visibility = View.GONE } // 点击隐藏
+        }
+        if (otaEngine != null) {
+            metricsView?.visibility = View.VISIBLE
+            metricsUpdate.run()
+        }
 
-            2 -> {
-                // Step 2: 发送 OTA_HEADER 命令
-                val otaHeaderCommand = byteArrayOf(
-                    0xAA.toByte(),
-                    0x02.toByte(),
-                    0x10.toByte(),
-                    0x00.toByte(),
-                    0x7C.toByte(),
-                    0x42.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0xF0.toByte(),
-                    0xCA.toByte(),
-                    0xFF.toByte(),
-                    0xFF.toByte(),
-                    0x07.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0xBB.toByte()
-                )
-                sendOtaCommand(bleDevice, otaHeaderCommand, receiveText)
-                receiveText.append("Sent OTA_HEADER command\n")
-            }
 
-            3 -> {
+        // 设置OTA按钮的点击事件
+        otaBtn.setOnClickListener {
+            firmwarePicker.launch(arrayOf("*/*")) // 选择固件后触发OTA流程
+//            (activity as MainActivity).bleOtaManager.startOtaProcess()
 
-                // Step 3: 发送自定义 OTA 数据包
-                val otaDataCommand = byteArrayOf(
-                    0xAA.toByte(),   // SOF
-                    0x01.toByte(),   // Packet type (数据类型)
-                    0x05.toByte(),   // Data length (低字节, 表示5个字节的内容)
-                    0x00.toByte(),   // Data length (高字节)
-                    0x68.toByte(),   // 'h'
-                    0x65.toByte(),   // 'e'
-                    0x6C.toByte(),   // 'l'
-                    0x6C.toByte(),   // 'l'
-                    0x6F.toByte(),   // 'o'
+        }
 
-                    // CRC 校验 (假设为0)
-                    0x00.toByte(),   // CRC
-                    0x00.toByte(),   // CRC
-                    0x00.toByte(),   // CRC
-                    0x00.toByte(),   // CRC
+        return view
+    }
 
-                    0xBB.toByte()    // EOF (结束标志)
-                )
+    override fun onDestroy() {
+        if (connected)
+            disconnect()
+        requireActivity().stopService(Intent(activity, SerialService::class.java))
+        otaEngine?.cancel()
+        metricsHandler.removeCallbacks(metricsUpdate)
+        metricsHandler.removeCallbacks(otaReconnect)
+        renderer?.close()
+        history?.close()
+        super.onDestroy()
+    }
 
-                sendOtaCommand(bleDevice, otaDataCommand, receiveText)
-                receiveText.append("Sent custom OTA data packet\n")
+    /*
+     * Serial + UI
+     */
+    // 连接设备, 连接由 SerialService 持有, 界面重建或进入后台时不断开
+    private fun connect() {
+        val address = arguments?.getString("device_address")
+        val service = service ?: return
+        if (address.isNullOrEmpty()) {
+            renderer?.status("Device address is null or empty\n")
+            return
+        }
+        renderer?.status("Connecting to device...\n")
+        val transport = BleTransport(requireContext().applicationContext, address, linkProfiles, mtuNegotiator)
+        // OTA 应答不经过界面合并, 直接交给 OtaEngine
+        transport.notifyListener = { data -> otaEngine?.onReceive(data) }
+        this.transport = transport
+        try {
+            service.connect(SerialSocket(requireContext().applicationContext, transport))
+        } catch (e: Exception) {
+            serialListener.onSerialConnectError(e)
+        }
+    }
 
-            }
+    private fun disconnect() {
+        connected = false
+        bleDevice = null
+        transport = null
+        service?.disconnect()
+    }
 
-            4 -> {
-                // Step 4: 发送 OTA_END 命令
-                val otaEndCommand = byteArrayOf(
-                    0xAA.toByte(),
-                    0x00.toByte(),
-                    0x01.toByte(),
-                    0x00.toByte(),
-                    0x01.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0xBB.toByte()
-                )
-                sendOtaCommand(bleDevice, otaEndCommand, receiveText)
-                receiveText.append("Sent OTA_END command\n")
-            }
+    // 录制收发数据, 文件保存在 App 外部存储的 captures 目录
+    private fun toggleCapture() {
+        val service = service ?: return
+        if (service.isCapturing) {
+            service.stopCapture()
+            captureBtn.text = "rec"
+            renderer?.status("Capture stopped\n")
+            return
+        }
+        val context = requireContext()
+        val dir = context.getExternalFilesDir("captures") ?: File(context.filesDir, "captures")
+        dir.mkdirs()
+        val file = File(dir, "capture-" + SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(Date()) + ".sbtc")
+        try {
+            service.startCapture(file)
+            captureBtn.text = "stop"
+            renderer?.status("Capturing to ${file.path}\n")
+        } catch (e: IOException) {
+            renderer?.status("Capture failed: ${e.message}\n")
         }
     }
 
-    val ack = byteArrayOf(
-        0xAA.toByte(),
-        0x03.toByte(),
-        0x01.toByte(),
-        0x00.toByte(),
-        0x00.toByte(),
-        0x00.toByte(),
-        0x00.toByte(),
-        0x00.toByte(),
-        0x00.toByte(),
-        0xBB.toByte()
-    )
-    val nack = byteArrayOf(
-        0xAA.toByte(),
-        0x03.toByte(),
-        0x01.toByte(),
-        0x00.toByte(),
-        0x01.toByte(),
-        0x00.toByte(),
-        0x00.toByte(),
-        0x00.toByte(),
-        0x00.toByte(),
-        0xBB.toByte()
-    )
-
-    // 处理OTA流程响应，决定是否进入下一步
-    private fun processOtaResponse(data: ByteArray) {
-        when (step) {
-            0 -> { // Step 0: 处理 OTA_UPDATE 的响应
-                val expectedResponse = byteArrayOf(
-                    0xFF.toByte(),
-                    0xAA.toByte(),
-                    0x57.toByte(),
-                    0xFF.toByte(),
-                    0xBB.toByte()
-                )
-                if (data.contentEquals(expectedResponse)) {
-                    // 收到 FF AA 57 FF BB 的数据，进入下一步
-                    step++ // 进入下一步
-                    startOtaProcess() // 执行下一步 OTA 操作
-                } else {
-//                    receiveText.append("Unexpected response for OTA_UPDATE\n")
-                }
-            }
+    // 按原始时序回放录制的数据, 回放期间断开当前连接
+    private fun replay(capture: Uri) {
+        val service = service ?: return
+        val input = try {
+            requireContext().contentResolver.openInputStream(capture)
+        } catch (e: Exception) {
+            null
+        }
+        if (input == null) {
+            renderer?.status("Cannot open $capture\n")
+            return
+        }
+        if (connected)
+            disconnect()
+        service.replay(input, SessionReplay.ORIGINAL_SPEED)
+    }
 
-            1 -> { // Step 1: 处理 OTA_START 的 ACK
-                if (data.contentEquals(ack)) {
-                    step++ // 进入下一步
-                    startOtaProcess() // 执行下一步 OTA 操作
-                } else if (data.contentEquals(nack)) {
-                    receiveText.append("Received OTA_START NACK\n")
-                }
+    // 在接收历史中搜索, 查询改变时重新搜索, 否则跳到上一个/下一个匹配
+    private fun search(step: Int) {
+        val history = history ?: return
+        val query = searchText?.text?.toString() ?: return
+        val hex = searchHex?.isChecked == true
+        if (query != searchQuery) {
+            searchQuery = query
+            val matcher = try {
+                PatternMatcher.parse(query, hex)
+            } catch (e: IllegalArgumentException) {
+                null // empty query
             }
+            searchScanning = matcher != null
+            history.search(matcher, searchListener)
+            searchIndex = -1
+        } else if (history.matchCount > 0) {
+            searchIndex = if (searchIndex < 0)
+                history.nextMatch(searchPos).let { if (it < 0) 0 else it } // continue from last shown match
+            else
+                Math.floorMod(searchIndex + step, history.matchCount)
+        }
+        showSearchResult()
+    }
 
-            2 -> { // Step 2: 处理 OTA_HEADER 的 ACK
-                if (data.contentEquals(ack)) {
-                    step++ // 进入下一步
-                    startOtaProcess() // 执行下一步 OTA 操作
-                } else if (data.contentEquals(nack)) {
-                    receiveText.append("Received OTA_HEADER NACK\n")
-                }
-            }
+    private fun showSearchResult() {
+        val view = searchResult ?: return
+        val history = history
+        if (history == null || searchQuery.isNullOrEmpty()) {
+            view.visibility = View.GONE
+            return
+        }
+        view.visibility = View.VISIBLE
+        val count = history.matchCount
+        val total = if (history.isTruncated) "$count+" else "$count"
+        val scanning = if (searchScanning) ", searching" else ""
+        if (searchIndex < 0 || searchIndex >= count) {
+            view.text = "$total matches$scanning"
+            return
+        }
+        // 匹配前后各显示 16 字节
+        val start = history.getMatchStart(searchIndex)
+        val length = history.getMatchLength(searchIndex)
+        val from = maxOf(0L, start - 16)
+        val context = ByteArray((start - from).toInt() + length + 16)
+        val read = try {
+            history.read(from, context, 0, context.size)
+        } catch (e: IOException) {
+            0
+        }
+        val before = (start - from).toInt()
+        val matchEnd = minOf(before + length, read)
+        searchPos = start
+        view.text = "${searchIndex + 1}/$total @ 0x${java.lang.Long.toHexString(start)}$scanning\n" +
+            TextUtil.toHexString(context, 0, minOf(before, read)) + " [" +
+            TextUtil.toHexString(context, minOf(before, read), matchEnd) + "] " +
+            TextUtil.toHexString(context, matchEnd, read)
+    }
+
+    // 发送消息, 由 SerialService 的写线程按 MTU 分段发送
+    private fun sendMessage(command: ByteArray) {
+        if (!connected) {
+            Toast.makeText(activity, "not connected", Toast.LENGTH_SHORT).show()
+            return
+        }
+        // OTA 与终端写同一个特征值, FastBle 每个特征值只保留一个写回调, 升级期间不允许终端发送
+        if (isOtaActive()) {
+            Toast.makeText(activity, "OTA in progress", Toast.LENGTH_SHORT).show()
+            return
+        }
+        try {
+            if (service?.write(command) == true)
+                renderer?.sent(command)
+            else
+                renderer?.status("Write queue full\n")
+        } catch (e: IOException) {
+            serialListener.onSerialIoError(e)
+        }
+    }
 
-            3 -> { // Step 3: 处理 OTA_DATA 的 ACK
-                if (data.contentEquals(ack)) {
-                    step++ // 进入最后一步
-                    startOtaProcess() // 执行下一步 OTA 操作
-                } else if (data.contentEquals(nack)) {
-                    receiveText.append("Received OTA_DATA NACK\n")
+    // 选择固件文件后开始OTA升级
+    private fun startOtaProcess(firmware: Uri) {
+        val device = bleDevice
+        if (device == null) {
+            renderer?.status("No device connected\n")
+            return
+        }
+        otaEngine?.cancel()
+        val resolver = requireContext().applicationContext.contentResolver
+        val renderer = renderer
+        val service = service
+        val link = FastBleOtaLink(device, mtu - 3, renderer, transport?.serviceUuid, transport?.characteristicUuid,
+            onSent = { service?.capture(SessionCapture.DIRECTION_OUT, it) }) {
+            otaEngine?.onLinkError(it)
+        }
+        val config = OtaEngine.Config()
+        val metrics = OtaUpdateManager.metrics
+        metrics.reset("MTU $mtu, ${phyName(linkProfiles.get(device.mac)?.txPhy ?: 0)} PHY, window ${config.windowSize}")
+        val engine = OtaEngine(link, {
+            resolver.openInputStream(firmware) ?: throw IOException("cannot open $firmware")
+        }, config = config, checkpoints = otaCheckpoints.forDevice(device.mac), metrics = metrics,
+            listener = object : OtaEngine.Listener {
+                private var lastPercent = -1
+
+                override fun onProgress(acknowledged: Long, total: Long) {
+                    val percent = (100 * acknowledged / total).toInt()
+                    if (percent / 10 != lastPercent / 10) {
+                        lastPercent = percent
+                        renderer?.status("OTA $percent% ($acknowledged of $total bytes)\n")
+                    }
                 }
-            }
 
-            4 -> { // Step 4: 处理 OTA_END 的 ACK（最后一步）
-                val ack = byteArrayOf(
-                    0xAA.toByte(),
-                    0x03.toByte(),
-                    0x01.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0x00.toByte(),
-                    0xBB.toByte()
-                )
-                if (data.contentEquals(ack)) {
-                } else if (data.contentEquals(nack)) {
-                    receiveText.append("Received OTA_END NACK\n")
+                override fun onComplete() {
+                    otaReconnects = 0
+                    renderer?.status("OTA complete\n")
+                    Log.d(TAG, metrics.snapshot().format())
+                    showMetrics()
                 }
-            }
 
-            else -> {
-                receiveText.append("Unknown step in OTA process\n")
-            }
-        }
+                override fun onError(message: String) {
+                    renderer?.status("OTA failed: $message\n")
+                    Log.d(TAG, metrics.snapshot().format())
+                    showMetrics()
+                }
+            })
+        otaEngine = engine
+        otaFirmware = firmware
+        renderer?.status("OTA started with ${mtu - 3} bytes per write\n")
+        metricsView?.visibility = View.VISIBLE
+        metricsHandler.removeCallbacks(metricsUpdate)
+        metricsHandler.postDelayed(metricsUpdate, 500)
+        engine.start()
+    }
 
+    private fun isOtaActive(): Boolean =
+        otaEngine?.state.let { it != null && it != OtaEngine.State.DONE && it != OtaEngine.State.FAILED }
 
+    private fun showMetrics() {
+        metricsView?.text = OtaUpdateManager.metrics.snapshot().format()
     }
 
-
-    // 发送OTA数据包
-    private fun sendOtaData() {
-        val data = "68656c6c6f".decodeHex() // 模拟的数据
-        val dataLen: Short = data.size.toShort()
-
-        val dataLenBytes = ByteBuffer.allocate(2)
-            .order(ByteOrder.LITTLE_ENDIAN)
-            .putShort(dataLen)
-            .array()
-
-        val packet = ByteArray(1 + 1 + 2 + data.size + 4 + 1)
-        var offset = 0
-
-        packet[offset++] = 0xAA.toByte() // SOF
-        packet[offset++] = 0x01.toByte() // Packet Type
-        packet[offset++] = dataLenBytes[0]
-        packet[offset++] = dataLenBytes[1]
-        System.arraycopy(data, 0, packet, offset, data.size)
-        offset += data.size
-        packet[offset++] = 0x00.toByte() // 结束标志
-        packet[offset++] = 0x00.toByte()
-        packet[offset++] = 0x00.toByte()
-        packet[offset++] = 0x00.toByte()
-        packet[offset] = 0xBB.toByte()
-
-        sendMessage(packet)
+    private fun phyName(phy: Int): String = when (phy) {
+        BluetoothDevice.PHY_LE_2M_MASK -> "2M"
+        BluetoothDevice.PHY_LE_CODED_MASK -> "coded"
+        else -> "1M"
     }
 
-    // 扩展函数：将16进制字符串转为字节数组
-    private fun String.decodeHex(): ByteArray {
-        val len = this.length
-        val data = ByteArray(len / 2)
-        for (i in 0 until len step 2) {
-            data[i / 2] =
-                ((this[i].toString().toInt(16) shl 4) + this[i + 1].toString().toInt(16)).toByte()
-        }
-        return data
+    // 升级中断线时自动重连, 最多 MAX_OTA_RECONNECTS 次, 连接成功后由 resumeOtaProcess 继续
+    private fun scheduleOtaReconnect() {
+        if (otaFirmware == null || otaEngine?.state != OtaEngine.State.FAILED || otaReconnects >= MAX_OTA_RECONNECTS)
+            return
+        otaReconnects++
+        renderer?.status("Reconnecting to resume OTA ($otaReconnects of $MAX_OTA_RECONNECTS)\n")
+        metricsHandler.removeCallbacks(otaReconnect)
+        metricsHandler.postDelayed(otaReconnect, OTA_RECONNECT_DELAY_MILLIS)
     }
 
-    // 将字节数组转换为16进制字符串
-    private fun byteArrayToHex(bytes: ByteArray): String {
-        return bytes.joinToString(" ") { String.format("%02X", it) }
+    // 断线重连后从上次确认的位置继续升级
+    private fun resumeOtaProcess(device: BleDevice) {
+        val firmware = otaFirmware ?: return
+        if (otaEngine?.state != OtaEngine.State.FAILED || otaCheckpoints.get(device.mac) == null)
+            return
+        renderer?.status("Resuming OTA\n")
+        startOtaProcess(firmware)
     }
 }
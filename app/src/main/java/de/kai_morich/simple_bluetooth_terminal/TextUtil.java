@@ -2,15 +2,14 @@ package de.kai_morich.simple_bluetooth_terminal;
 
 import android.text.Editable;
 import android.text.InputType;
-import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.TextWatcher;
-import android.text.style.BackgroundColorSpan;
 import android.widget.TextView;
 
 import androidx.annotation.ColorInt;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 final class TextUtil {
 
@@ -20,23 +19,11 @@ final class TextUtil {
     final static String newline_lf = "\n";
 
     static byte[] fromHexString(final CharSequence s) {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        byte b = 0;
-        int nibble = 0;
-        for(int pos = 0; pos<s.length(); pos++) {
-            if(nibble==2) {
-                buf.write(b);
-                nibble = 0;
-                b = 0;
-            }
-            int c = s.charAt(pos);
-            if(c>='0' && c<='9') { nibble++; b *= 16; b += c-'0';    }
-            if(c>='A' && c<='F') { nibble++; b *= 16; b += c-'A'+10; }
-            if(c>='a' && c<='f') { nibble++; b *= 16; b += c-'a'+10; }
-        }
-        if(nibble>0)
-            buf.write(b);
-        return buf.toByteArray();
+        ByteBuffer buf = ByteBuffer.allocate(s.length() / 2 + 1);
+        HexCodec.Decoder decoder = new HexCodec.Decoder();
+        decoder.decode(s, 0, s.length(), buf);
+        decoder.finish(buf);
+        return Arrays.copyOf(buf.array(), buf.position());
     }
 
     static String toHexString(final byte[] buf) {
@@ -44,9 +31,9 @@ final class TextUtil {
     }
 
     static String toHexString(final byte[] buf, int begin, int end) {
-        StringBuilder sb = new StringBuilder(3*(end-begin));
-        toHexString(sb, buf, begin, end);
-        return sb.toString();
+        char[] chars = new char[HexCodec.maxEncodedLength(end-begin)];
+        int len = new HexCodec.Encoder().encode(buf, begin, end-begin, chars, 0);
+        return new String(chars, 0, len);
     }
 
     static void toHexString(StringBuilder sb, final byte[] buf) {
@@ -54,18 +41,15 @@ final class TextUtil {
     }
 
     static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
-        for(int pos=begin; pos<end; pos++) {
-            if(sb.length()>0)
-                sb.append(' ');
-            int c;
-            c = (buf[pos]&0xff) / 16;
-            if(c >= 10) c += 'A'-10;
-            else        c += '0';
-            sb.append((char)c);
-            c = (buf[pos]&0xff) % 16;
-            if(c >= 10) c += 'A'-10;
-            else        c += '0';
-            sb.append((char)c);
+        if(begin >= end)
+            return;
+        sb.ensureCapacity(sb.length() + HexCodec.maxEncodedLength(end-begin));
+        if(sb.length()>0)
+            sb.append(' ');
+        HexCodec.appendHex(sb, buf[begin]);
+        for(int pos=begin+1; pos<end; pos++) {
+            sb.append(' ');
+            HexCodec.appendHex(sb, buf[pos]);
         }
     }
 
@@ -77,24 +61,14 @@ final class TextUtil {
     }
 
     static CharSequence toCaretString(CharSequence s, boolean keepNewline, int length) {
-        boolean found = false;
-        for (int pos = 0; pos < length; pos++) {
-            if (s.charAt(pos) < 32 && (!keepNewline ||s.charAt(pos)!='\n')) {
-                found = true;
-                break;
-            }
-        }
-        if(!found)
+        int pos = 0;
+        while (pos < length && !CaretRenderer.isControl(s.charAt(pos), keepNewline))
+            pos++;
+        if(pos == length)
             return s;
         SpannableStringBuilder sb = new SpannableStringBuilder();
-        for(int pos=0; pos<length; pos++)
-            if (s.charAt(pos) < 32 && (!keepNewline ||s.charAt(pos)!='\n')) {
-                sb.append('^');
-                sb.append((char)(s.charAt(pos) + 64));
-                sb.setSpan(new BackgroundColorSpan(caretBackground), sb.length()-2, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            } else {
-                sb.append(s.charAt(pos));
-            }
+        sb.append(s, 0, pos);
+        new CaretRenderer(keepNewline).append(sb, s, pos, length);
         return sb;
     }
 
@@ -127,11 +101,10 @@ final class TextUtil {
         public void onTextChanged(CharSequence s, int start, int before, int count) {
         }
 
-        @Override
-        public void afterTextChanged(Editable s) {
-            if(!enabled || self)
-                return;
-
+        /**
+         * keep hex digits as upper case pairs separated by blank
+         */
+        static void format(CharSequence s, StringBuilder sb) {
             sb.delete(0,sb.length());
             int i;
             for(i=0; i<s.length(); i++) {
@@ -142,6 +115,14 @@ final class TextUtil {
             }
             for(i=2; i<sb.length(); i+=3)
                 sb.insert(i,' ');
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            if(!enabled || self)
+                return;
+
+            format(s, sb);
             final String s2 = sb.toString();
 
             if(!s2.equals(s.toString())) {
@@ -0,0 +1,21 @@
+package androidx.core.content;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+/**
+ * JVM replacement for the androidx.core method used by SerialSocket, androidx.core is an AAR.
+ * The benchmarks pass a null context, so receivers are never registered
+ */
+public final class ContextCompat {
+
+    public static final int RECEIVER_NOT_EXPORTED = 0x4;
+
+    private ContextCompat() {}
+
+    public static Intent registerReceiver(Context context, BroadcastReceiver receiver, IntentFilter filter, int flags) {
+        return context.registerReceiver(receiver, filter, flags);
+    }
+}
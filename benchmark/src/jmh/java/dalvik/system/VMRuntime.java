@@ -0,0 +1,20 @@
+package dalvik.system;
+
+import java.lang.reflect.Array;
+
+/**
+ * JVM replacement for the native ART runtime methods used by framework text classes
+ * (SpannableStringBuilder, ...). Has to precede android-all on the classpath
+ */
+public final class VMRuntime {
+
+    private static final VMRuntime RUNTIME = new VMRuntime();
+
+    public static VMRuntime getRuntime() {
+        return RUNTIME;
+    }
+
+    public Object newUnpaddedArray(Class<?> componentType, int minLength) {
+        return Array.newInstance(componentType, minLength);
+    }
+}
@@ -0,0 +1,8 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+/**
+ * replacement for the class generated by the Android build, used by Constants
+ */
+final class BuildConfig {
+    static final String APPLICATION_ID = "de.kai_morich.simple_bluetooth_terminal";
+}
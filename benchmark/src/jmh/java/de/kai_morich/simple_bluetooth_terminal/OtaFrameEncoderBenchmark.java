@@ -0,0 +1,68 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * framing of a firmware image into OTA DATA frames, one op = one frame
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class OtaFrameEncoderBenchmark {
+
+    // MTU 23 and 247 with 3 bytes ATT and 9 bytes frame overhead
+    @Param({"11", "235"})
+    int payloadSize;
+
+    private static final int IMAGE_SIZE = 1024 * 1024;
+
+    private final OtaFrameEncoder encoder = new OtaFrameEncoder();
+    private byte[] image;
+    private byte[] frame;
+    private ByteBuffer direct;
+    private int pos;
+
+    @Setup
+    public void setup() {
+        image = new byte[IMAGE_SIZE];
+        new Random(42).nextBytes(image);
+        frame = new byte[OtaFrameEncoder.frameLength(payloadSize)];
+        direct = ByteBuffer.allocateDirect(OtaFrameEncoder.frameLength(payloadSize));
+    }
+
+    private int nextOffset() {
+        int off = pos;
+        pos += payloadSize;
+        if (pos + payloadSize > IMAGE_SIZE)
+            pos = 0;
+        return off;
+    }
+
+    @Benchmark
+    public byte[] encodeInPlace(Throughput throughput) {
+        // stands in for reading the image into the frame
+        System.arraycopy(image, nextOffset(), frame, OtaFrameEncoder.HEADER_LENGTH, payloadSize);
+        encoder.encodeInPlace(OtaFrameEncoder.TYPE_DATA, frame, 0, payloadSize);
+        throughput.add(payloadSize);
+        return frame;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeDirect(Throughput throughput) {
+        direct.clear();
+        encoder.encode(OtaFrameEncoder.TYPE_DATA, image, nextOffset(), payloadSize, direct);
+        throughput.add(payloadSize);
+        return direct;
+    }
+}
@@ -0,0 +1,62 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * chunk merging of SerialService.onSerialRead, with the main looper replaced
+ * by a queue that is run after chunksPerDrain chunks, i.e. a UI thread
+ * that is that many chunks behind the socket thread
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class ReadMergerBenchmark {
+
+    @Param({"16", "256", "1024"})
+    int chunkSize;
+
+    @Param({"1", "16"})
+    int chunksPerDrain;
+
+    private static final int RING_CAPACITY = 64 * 1024; // SerialService.READ_RING_CAPACITY
+
+    private ReceiveBufferPool socketPool;
+    private ReadMerger merger;
+    private final ArrayDeque<Runnable> posted = new ArrayDeque<>();
+    private long consumed;
+
+    @Setup
+    public void setup() {
+        socketPool = new ReceiveBufferPool();
+        merger = new ReadMerger(RING_CAPACITY, new ReceiveBufferPool(), posted::add, datas -> {
+            for(ReceiveBufferPool.Slice slice : datas) {
+                consumed += slice.length;
+                slice.release();
+            }
+        });
+    }
+
+    @Benchmark
+    public long merge(Throughput throughput) {
+        for(int i=0; i<chunksPerDrain; i++) {
+            ReceiveBufferPool.Slice slice = socketPool.acquire();
+            slice.length = chunkSize;
+            merger.write(slice);
+        }
+        Runnable drain;
+        while((drain = posted.poll()) != null)
+            drain.run();
+        throughput.add(chunkSize * chunksPerDrain);
+        return consumed;
+    }
+}
@@ -0,0 +1,135 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SerialSocket read loop and SerialWriter over a real transport, an in-process pipe
+ * or TCP loopback, at the chunk size of the remote device. One op = one chunk.
+ *
+ * read: the benchmark thread acts as remote device writing into the socket, at most
+ * MAX_IN_FLIGHT bytes ahead of the listener. write: the benchmark thread writes through
+ * the socket, a peer thread drains the remote side.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SerialSocketBenchmark {
+
+    @Param({"pipe", "tcp"})
+    String transport;
+
+    @Param({"20", "1024"})
+    int chunkSize;
+
+    private static final long MAX_IN_FLIGHT = 64 * 1024;
+    private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+    private final AtomicLong received = new AtomicLong();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private SerialSocket socket;
+    private ServerSocket server;
+    private Socket peer;
+    private OutputStream peerOutput;
+    private InputStream peerInput;
+    private Thread peerReader;
+    private byte[] chunk;
+    private long sent;
+
+    private final SerialListener listener = new SerialListener() {
+        @Override public void onSerialConnect() { connected.countDown(); }
+        @Override public void onSerialConnectError(Exception e) { connected.countDown(); }
+        @Override public void onSerialRead(byte[] data) { received.addAndGet(data.length); }
+        @Override public void onSerialRead(ReceiveBufferPool.Slice slice) {
+            received.addAndGet(slice.length);
+            slice.release();
+        }
+        @Override public void onSerialRead(ArrayDeque<ReceiveBufferPool.Slice> slices) { throw new UnsupportedOperationException(); }
+        @Override public void onSerialIoError(Exception e) {}
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        chunk = new byte[chunkSize];
+        SerialTransport serialTransport;
+        if (transport.equals("pipe")) {
+            PipeTransport pipe = new PipeTransport();
+            serialTransport = pipe;
+            peerOutput = pipe.getPeerOutputStream();
+            peerInput = pipe.getPeerInputStream();
+        } else {
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            serialTransport = new TcpTransport(server.getInetAddress().getHostAddress(), server.getLocalPort());
+        }
+        socket = new SerialSocket(null, serialTransport);
+        socket.connect(listener);
+        if (server != null) {
+            peer = server.accept();
+            peer.setTcpNoDelay(true);
+            peerOutput = peer.getOutputStream();
+            peerInput = peer.getInputStream();
+        }
+        if (!connected.await(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            throw new IOException("connect timeout");
+        peerReader = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                //noinspection StatementWithEmptyBody
+                while (peerInput.read(buffer) >= 0) {
+                }
+            } catch (IOException ignored) {
+                // closed in tearDown
+            }
+        }, "peer reader");
+        peerReader.setDaemon(true);
+        peerReader.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        socket.disconnect();
+        if (peer != null)
+            peer.close();
+        if (server != null)
+            server.close();
+        peerReader.join(1000);
+    }
+
+    @Benchmark
+    public long read(Throughput throughput) throws IOException {
+        peerOutput.write(chunk);
+        sent += chunkSize;
+        while (sent - received.get() > MAX_IN_FLIGHT)
+            Thread.onSpinWait();
+        throughput.add(chunkSize);
+        return sent;
+    }
+
+    @Benchmark
+    public long write(Throughput throughput) throws IOException {
+        while (!socket.write(chunk, null)) // queue full
+            LockSupport.parkNanos(10_000);
+        throughput.add(chunkSize);
+        return ++sent;
+    }
+}
@@ -0,0 +1,110 @@
+package de.kai_morich.simple_bluetooth_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.text.SpannableStringBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hex and caret conversion as used when rendering received data
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class TextUtilBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    int size;
+
+    private byte[] data;
+    private String hex;
+    private String text;
+    private String hexInput;
+    private final StringBuilder sb = new StringBuilder();
+    private final HexCodec.Encoder encoder = new HexCodec.Encoder();
+    private final HexCodec.Decoder decoder = new HexCodec.Decoder();
+    private final CaretRenderer caretRenderer = new CaretRenderer(true);
+    private final SpannableStringBuilder caretText = new SpannableStringBuilder();
+    private char[] chars;
+    private ByteBuffer bytes;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        data = new byte[size];
+        random.nextBytes(data);
+        hex = TextUtil.toHexString(data);
+        hexInput = hex.replace(" ", "").toLowerCase();
+        // mostly printable text with some control characters, like typical device logs
+        char[] chars = new char[size];
+        for(int i=0; i<size; i++)
+            chars[i] = random.nextInt(16) == 0 ? (char) random.nextInt(32) : (char) (32 + random.nextInt(95));
+        text = new String(chars);
+        this.chars = new char[HexCodec.maxEncodedLength(size)];
+        bytes = ByteBuffer.allocate(size);
+    }
+
+    @Benchmark
+    public String toHexString(Throughput throughput) {
+        throughput.add(size);
+        return TextUtil.toHexString(data);
+    }
+
+    @Benchmark
+    public byte[] fromHexString(Throughput throughput) {
+        throughput.add(size);
+        return TextUtil.fromHexString(hex);
+    }
+
+    @Benchmark
+    public char[] hexCodecEncode(Throughput throughput) {
+        throughput.add(size);
+        encoder.reset();
+        encoder.encode(data, 0, size, chars, 0);
+        return chars;
+    }
+
+    @Benchmark
+    public ByteBuffer hexCodecDecode(Throughput throughput) {
+        throughput.add(size);
+        bytes.clear();
+        decoder.reset();
+        decoder.decode(hex, 0, hex.length(), bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public CharSequence toCaretString(Throughput throughput) {
+        throughput.add(size);
+        return TextUtil.toCaretString(text, true);
+    }
+
+    /**
+     * append chunks to a growing text, like receive text. cleared at 256k chars
+     */
+    @Benchmark
+    public CharSequence caretRendererAppend(Throughput throughput) {
+        throughput.add(size);
+        if(caretText.length() > 256 * 1024)
+            caretRenderer.clear(caretText);
+        caretRenderer.append(caretText, text);
+        return caretText;
+    }
+
+    @Benchmark
+    public StringBuilder hexWatcherFormat(Throughput throughput) {
+        throughput.add(size);
+        TextUtil.HexWatcher.format(hexInput, sb);
+        return sb;
+    }
+}